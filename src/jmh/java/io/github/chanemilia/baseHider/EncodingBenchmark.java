@@ -0,0 +1,63 @@
+package io.github.chanemilia.baseHider;
+
+import com.github.retrooper.packetevents.wrapper.play.server.WrapperPlayServerMultiBlockChange.EncodedBlock;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turning scan results into what goes out in a MultiBlockChange: encoding, byte estimation and sparse hides
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class EncodingBenchmark {
+
+    @Param({"64", "1024", "4096"})
+    public int blocks;
+
+    private HiderSystem.SimpleBlockInfo[] infos;
+    private EncodedBlock[] encoded;
+    private EncodedBlock[] solid;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+
+        // Distinct positions in storage order, like a real scan
+        int[] positions = random.ints(0, 4096).distinct().limit(blocks).sorted().toArray();
+        infos = new HiderSystem.SimpleBlockInfo[blocks];
+        for (int i = 0; i < blocks; i++) {
+            int index = positions[i];
+            infos[i] = new HiderSystem.SimpleBlockInfo(1 + random.nextInt(20000), index & 15, index >> 8, (index >> 4) & 15);
+        }
+        encoded = HiderSystem.encodeBlocks(infos);
+
+        // Laid out like emiliasPaintBrush
+        solid = new EncodedBlock[4096];
+        int i = 0;
+        for (int y = 0; y < 16; y++) {
+            for (int z = 0; z < 16; z++) {
+                for (int x = 0; x < 16; x++) {
+                    solid[i++] = new EncodedBlock(1, x, y, z);
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public EncodedBlock[] encode() {
+        return HiderSystem.encodeBlocks(infos);
+    }
+
+    @Benchmark
+    public int estimateBytes() {
+        return HiderSystem.estimatePacketBytes(encoded);
+    }
+
+    @Benchmark
+    public EncodedBlock[] sparseHide() {
+        return HiderSystem.sparseHide(encoded, solid);
+    }
+}
@@ -0,0 +1,61 @@
+package io.github.chanemilia.baseHider;
+
+import com.github.retrooper.packetevents.wrapper.play.server.WrapperPlayServerMultiBlockChange.EncodedBlock;
+import org.bukkit.Material;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unpacking a section's palette into the blocks a reveal sends, against synthetic sections of different palette sizes.
+ * Palette entry 0 is the replacement block, so roughly 1 in paletteSize blocks are skipped
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SectionScanBenchmark {
+
+    @Param({"1", "4", "16", "64", "256"})
+    public int paletteSize;
+
+    private long[] raw;
+    private int bits;
+    private HiderSystem.ResolvedState[] palette;
+    private HiderSystem.PaletteResolver resolver;
+
+    @Setup
+    public void setup() {
+        // Same bit widths the server picks: nothing for a single value, at least 4 otherwise
+        bits = paletteSize == 1 ? 0 : Math.max(4, 32 - Integer.numberOfLeadingZeros(paletteSize - 1));
+
+        palette = new HiderSystem.ResolvedState[paletteSize];
+        for (int i = 0; i < paletteSize; i++) {
+            palette[i] = new HiderSystem.ResolvedState(1000 + i, i == 0 ? Material.DEEPSLATE : Material.STONE);
+        }
+        resolver = index -> index < palette.length ? palette[index] : null;
+
+        if (bits == 0) {
+            raw = new long[0];
+            return;
+        }
+
+        Random random = new Random(42);
+        int valuesPerLong = 64 / bits;
+        raw = new long[(4096 + valuesPerLong - 1) / valuesPerLong];
+        for (int i = 0; i < 4096; i++) {
+            long value = random.nextInt(paletteSize);
+            raw[i / valuesPerLong] |= value << ((i % valuesPerLong) * bits);
+        }
+    }
+
+    @Benchmark
+    public HiderSystem.SimpleBlockInfo[] unpack() throws Exception {
+        return HiderSystem.unpackPalette(raw, bits, paletteSize, Material.DEEPSLATE, resolver);
+    }
+
+    @Benchmark
+    public EncodedBlock[] unpackAndEncode() throws Exception {
+        return HiderSystem.encodeBlocks(HiderSystem.unpackPalette(raw, bits, paletteSize, Material.DEEPSLATE, resolver));
+    }
+}
@@ -0,0 +1,82 @@
+package io.github.chanemilia.baseHider;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-player state under the churn of a player flying around: sections hidden and revealed,
+ * pending flags set and cleared, and the lookups the packet filters do for every chunk and block update
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StateChurnBenchmark {
+
+    @Param({"8", "32"})
+    public int viewDistance;
+
+    private PlayerState state;
+    private long[] keys;
+    private int offset;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        state = new PlayerState(UUID.randomUUID());
+
+        // One column of 4 sections per chunk in view, like the overworld below y -1
+        int side = viewDistance * 2 + 1;
+        keys = new long[side * side * 4];
+        int i = 0;
+        for (int x = -viewDistance; x <= viewDistance; x++) {
+            for (int z = -viewDistance; z <= viewDistance; z++) {
+                for (int sy = -4; sy < 0; sy++) {
+                    keys[i++] = HiderSystem.getSectionKey(x, z, sy);
+                }
+            }
+        }
+        for (long key : keys) state.setHidden(key, true);
+        offset = 0;
+    }
+
+    /**
+     * Moving a chunk along: one row of columns is forgotten, another hidden
+     */
+    @Benchmark
+    public void hideAndReveal() {
+        int row = (viewDistance * 2 + 1) * 4;
+        int start = offset;
+        offset = (offset + row) % keys.length;
+
+        int[] versions = new int[row];
+        for (int i = 0; i < row; i++) {
+            versions[i] = state.decide(keys[start + i], false);
+        }
+        for (int i = 0; i < row; i++) {
+            long key = keys[start + i];
+            state.complete(key, versions[i]);
+            state.setHidden(key, true);
+        }
+    }
+
+    @Benchmark
+    public void lookups(Blackhole bh) {
+        for (long key : keys) {
+            bh.consume(state.isHidden(key));
+        }
+    }
+
+    @Benchmark
+    public void entityTracking(Blackhole bh) {
+        for (int id = 0; id < 512; id++) {
+            state.trackEntity(new TrackedEntity(id, id, -20, id));
+            state.setEntityHidden(id, (id & 1) == 0);
+        }
+        for (int id = 0; id < 512; id++) {
+            bh.consume(state.trackedEntity(id));
+            state.untrackEntity(id);
+        }
+    }
+}
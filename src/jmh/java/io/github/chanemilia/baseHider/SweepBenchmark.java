@@ -0,0 +1,67 @@
+package io.github.chanemilia.baseHider;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A rescan for one synthetic player over an overworld below y -1 with a 48 block show distance.
+ * Updates are treated as sent straight away so nothing stays pending between invocations
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SweepBenchmark {
+    private static final int MIN_SECTION = -64 >> 4;
+    private static final int MAX_SECTION = -1 >> 4;
+    private static final double SHOW_DISTANCE_SQ = 48 * 48;
+
+    @Param({"8", "16", "32"})
+    public int viewDistance;
+
+    private PlayerState state;
+    private boolean flip;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        state = new PlayerState(UUID.randomUUID());
+        flip = false;
+
+        // Everything around both spots is loaded on the client, sweeps skip columns that aren't
+        for (int cx = -viewDistance; cx <= 16 + viewDistance; cx++) {
+            for (int cz = -viewDistance; cz <= viewDistance; cz++) state.loadColumn(cx, cz);
+        }
+        sweep(null, 0, -20, 0, null);
+    }
+
+    /**
+     * Full sweep, jumping between two spots far enough apart that the whole reveal sphere changes every time
+     */
+    @Benchmark
+    public void fullSweep(Blackhole bh) {
+        flip = !flip;
+        sweep(null, flip ? 256 : 0, -20, 0, bh);
+    }
+
+    /**
+     * Delta sweep for a player walking back and forth by a block
+     */
+    @Benchmark
+    public void deltaSweep(Blackhole bh) {
+        flip = !flip;
+        double from = flip ? 0 : 1;
+        double to = flip ? 1 : 0;
+        sweep(new PlayerState.SweepOrigin(from, -20, 0), to, -20, 0, bh);
+    }
+
+    private void sweep(PlayerState.SweepOrigin previous, double x, double y, double z, Blackhole bh) {
+        HiderSystem.sweepSections(state, previous, x, y, z, (int) Math.floor(x) >> 4, (int) Math.floor(z) >> 4,
+                viewDistance, MIN_SECTION, MAX_SECTION, SHOW_DISTANCE_SQ, false, true,
+                (cx, cz, sy, hide, distSq, sectionKey, version) -> {
+                    state.complete(sectionKey, version);
+                    if (bh != null) bh.consume(sectionKey);
+                });
+    }
+}
@@ -59,11 +59,12 @@ public class BaseHider extends JavaPlugin implements Listener, CommandExecutor {
     }
 
     public void reload() {
+        reloadConfig();
         if (hiderSystem != null) {
-            hiderSystem.shutdown();
+            hiderSystem.reload();
+        } else {
+            hiderSystem = new HiderSystem(this);
         }
-        reloadConfig();
-        hiderSystem = new HiderSystem(this);
     }
 
     @Override
@@ -77,6 +78,17 @@ public class BaseHider extends JavaPlugin implements Listener, CommandExecutor {
             sender.sendMessage(Component.text("BaseHider config reloaded!", NamedTextColor.GREEN));
             return true;
         }
+        if (args.length > 0 && args[0].equalsIgnoreCase("stats")) {
+            if (!sender.hasPermission("basehider.op")) {
+                sender.sendMessage(Component.text("Insufficient permissions.", NamedTextColor.RED));
+                return true;
+            }
+            sender.sendMessage(Component.text("BaseHider stats", NamedTextColor.GOLD));
+            for (String line : hiderSystem.statsLines()) {
+                sender.sendMessage(Component.text(line, NamedTextColor.GRAY));
+            }
+            return true;
+        }
         return false;
     }
 }
\ No newline at end of file
@@ -0,0 +1,150 @@
+package io.github.chanemilia.baseHider;
+
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Entity;
+
+import java.util.*;
+
+/**
+ * Entities at or below a world's block-hide-y, bucketed by the chunk section they're in.
+ * Lets entity visibility be worked out per section instead of per nearby entity. Main thread only
+ */
+public class EntityIndex {
+    private final Map<UUID, WorldIndex> worlds = new HashMap<>();
+
+    // Bumped whenever an entity enters or leaves a bucket, each bucket remembers when it last changed
+    private long generation;
+
+    public void track(Entity entity, int blockHideY) {
+        track(entity, entity.getLocation(), blockHideY);
+    }
+
+    /**
+     * Moves the entity into the bucket for the given location, or drops it if it's above the hide line
+     */
+    public void track(Entity entity, Location loc, int blockHideY) {
+        WorldIndex index = worlds.computeIfAbsent(loc.getWorld().getUID(), k -> new WorldIndex());
+        int entityId = entity.getEntityId();
+
+        if (loc.getBlockY() > blockHideY) {
+            index.remove(entityId);
+            return;
+        }
+
+        int cx = loc.getBlockX() >> 4;
+        int cy = loc.getBlockY() >> 4;
+        int cz = loc.getBlockZ() >> 4;
+
+        Bucket current = index.byEntity.get(entityId);
+        if (current != null && current.cx == cx && current.sy == cy && current.cz == cz) {
+            current.entities.put(entityId, entity);
+            return;
+        }
+
+        index.remove(entityId);
+        Bucket bucket = index.buckets.get(HiderSystem.getSectionKey(cx, cz, cy));
+        if (bucket == null) {
+            bucket = new Bucket(cx, cy, cz);
+            index.buckets.put(HiderSystem.getSectionKey(cx, cz, cy), bucket);
+            index.columns.computeIfAbsent(columnKey(cx, cz), k -> new ArrayList<>(2)).add(bucket);
+        }
+        bucket.entities.put(entityId, entity);
+        bucket.changedAt = ++generation;
+        index.byEntity.put(entityId, bucket);
+    }
+
+    public void untrack(Entity entity) {
+        WorldIndex index = worlds.get(entity.getWorld().getUID());
+        if (index != null) index.remove(entity.getEntityId());
+    }
+
+    /**
+     * Re-buckets every entity in the world, catching movement that no event reports
+     */
+    public void refresh(World world, int blockHideY) {
+        WorldIndex index = worlds.get(world.getUID());
+        if (index != null) {
+            List<Integer> gone = new ArrayList<>();
+            index.byEntity.forEach((id, bucket) -> {
+                Entity entity = bucket.entities.get(id);
+                if (entity == null || !entity.isValid()) gone.add(id);
+            });
+            for (int id : gone) index.remove(id);
+        }
+
+        for (Entity entity : world.getEntities()) {
+            track(entity, blockHideY);
+        }
+    }
+
+    /**
+     * Buckets in one chunk column, empty if it has no tracked entities
+     */
+    public List<Bucket> bucketsIn(UUID world, int cx, int cz) {
+        WorldIndex index = worlds.get(world);
+        if (index == null) return Collections.emptyList();
+        List<Bucket> buckets = index.columns.get(columnKey(cx, cz));
+        return buckets == null ? Collections.emptyList() : buckets;
+    }
+
+    public long generation() {
+        return generation;
+    }
+
+    public boolean contains(UUID world, int entityId) {
+        WorldIndex index = worlds.get(world);
+        return index != null && index.byEntity.containsKey(entityId);
+    }
+
+    /**
+     * Forgets an unloaded world, so its entities aren't kept around
+     */
+    public void removeWorld(UUID world) {
+        worlds.remove(world);
+    }
+
+    public void clear() {
+        worlds.clear();
+    }
+
+    private static long columnKey(int cx, int cz) {
+        return ((long) cx << 32) | (cz & 0xFFFFFFFFL);
+    }
+
+    public static final class Bucket {
+        public final int cx;
+        public final int sy;
+        public final int cz;
+        public final Map<Integer, Entity> entities = new HashMap<>();
+        // Index generation when an entity last entered or left
+        public long changedAt;
+
+        Bucket(int cx, int sy, int cz) {
+            this.cx = cx;
+            this.sy = sy;
+            this.cz = cz;
+        }
+    }
+
+    private final class WorldIndex {
+        final Map<Long, Bucket> buckets = new HashMap<>();
+        final Map<Long, List<Bucket>> columns = new HashMap<>();
+        final Map<Integer, Bucket> byEntity = new HashMap<>();
+
+        void remove(int entityId) {
+            Bucket bucket = byEntity.remove(entityId);
+            if (bucket == null) return;
+
+            bucket.entities.remove(entityId);
+            bucket.changedAt = ++generation;
+            if (bucket.entities.isEmpty()) {
+                buckets.remove(HiderSystem.getSectionKey(bucket.cx, bucket.cz, bucket.sy));
+                long column = columnKey(bucket.cx, bucket.cz);
+                List<Bucket> inColumn = columns.get(column);
+                inColumn.remove(bucket);
+                if (inColumn.isEmpty()) columns.remove(column);
+            }
+        }
+    }
+}
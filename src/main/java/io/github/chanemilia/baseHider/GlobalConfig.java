@@ -4,20 +4,75 @@ import org.bukkit.configuration.ConfigurationSection;
 
 public class GlobalConfig {
     public final int updatesPerTick;
+    public final int playerUpdatesPerTick;
+    public final long bytesPerTick;
+    public final long playerBytesPerTick;
+    public final int slowPingMs;
+    public final double targetMspt;
+    public final double viewPriority;
     public final int rescanInterval;
+    public final int asyncThreads;
     public final boolean rehideChunks;
+    public final boolean rewriteChunks;
+    public final boolean sparseHiding;
+    public final boolean bulkReveal;
+    public final boolean bundleUpdates;
+    public final long scanCacheBlocks;
+    public final boolean persistState;
+    public final int metricsFileInterval;
+    public final int metricsPort;
+    public final String metricsBindAddress;
 
     public GlobalConfig(ConfigurationSection section) {
         if (section == null) {
             this.updatesPerTick = 5;
+            this.playerUpdatesPerTick = 5;
+            this.bytesPerTick = 4194304 / 20;
+            this.playerBytesPerTick = 524288 / 20;
+            this.slowPingMs = 250;
+            this.targetMspt = 45;
+            this.viewPriority = 3.0;
             this.rescanInterval = 10;
+            this.asyncThreads = defaultAsyncThreads();
             this.rehideChunks = true;
+            this.rewriteChunks = true;
+            this.sparseHiding = false;
+            this.bulkReveal = true;
+            this.bundleUpdates = true;
+            this.scanCacheBlocks = 500000;
+            this.persistState = false;
+            this.metricsFileInterval = 0;
+            this.metricsPort = 0;
+            this.metricsBindAddress = "127.0.0.1";
             return;
         }
 
-        int updatesPerSecond = section.getInt("max-updates-per-second", 200);
-        this.updatesPerTick = Math.max(25, updatesPerSecond / 20);
+        int updatesPerSecond = section.getInt("max-updates-per-second", 500);
+        this.updatesPerTick = Math.max(1, updatesPerSecond / 20);
+        this.playerUpdatesPerTick = Math.max(1, section.getInt("max-player-updates-per-tick", 10));
+
+        // Never below one full section per tick, otherwise the largest updates could never be sent
+        this.bytesPerTick = Math.max(UpdateScheduler.MAX_SECTION_BYTES, section.getLong("max-bytes-per-second", 4194304) / 20);
+        this.playerBytesPerTick = Math.max(1024, section.getLong("max-player-bytes-per-second", 524288) / 20);
+        this.slowPingMs = Math.max(1, section.getInt("slow-ping-ms", 250));
+        this.targetMspt = section.getDouble("target-mspt", 45);
+        this.viewPriority = Math.max(0, section.getDouble("view-priority", 3.0));
         this.rescanInterval = section.getInt("rescan-interval", 20);
+        int threads = section.getInt("async-threads", 0);
+        this.asyncThreads = threads > 0 ? threads : defaultAsyncThreads();
         this.rehideChunks = section.getBoolean("rehide-chunks", false);
+        this.rewriteChunks = section.getBoolean("rewrite-chunks", true);
+        this.sparseHiding = section.getBoolean("sparse-hiding", false);
+        this.bulkReveal = section.getBoolean("bulk-reveal", true);
+        this.bundleUpdates = section.getBoolean("bundle-updates", true);
+        this.scanCacheBlocks = Math.max(0, section.getLong("scan-cache-blocks", 500000));
+        this.persistState = section.getBoolean("persist-state", false);
+        this.metricsFileInterval = Math.max(0, section.getInt("metrics-file-interval", 0));
+        this.metricsPort = Math.max(0, section.getInt("metrics-port", 0));
+        this.metricsBindAddress = section.getString("metrics-bind-address", "127.0.0.1");
+    }
+
+    private static int defaultAsyncThreads() {
+        return Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
     }
-}
\ No newline at end of file
+}
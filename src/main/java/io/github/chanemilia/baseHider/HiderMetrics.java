@@ -0,0 +1,158 @@
+package io.github.chanemilia.baseHider;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms for what HiderSystem is doing.
+ * Recording is a LongAdder increment from any thread, cheap enough to leave on in production
+ */
+public class HiderMetrics {
+    public final LongAdder updatesSent = new LongAdder();
+    public final LongAdder bytesSent = new LongAdder();
+    public final LongAdder sectionsRewritten = new LongAdder();
+    public final LongAdder columnsResent = new LongAdder();
+    public final LongAdder updatesSuperseded = new LongAdder();
+    public final LongAdder cacheHits = new LongAdder();
+    public final LongAdder cacheMisses = new LongAdder();
+    public final LongAdder blockChangesDropped = new LongAdder();
+    public final LongAdder entityPacketsDropped = new LongAdder();
+    public final LongAdder positionalPacketsDropped = new LongAdder();
+
+    // Trigger (rescan or chunk load) to the packet being handed to netty
+    public final Histogram revealLatency = new Histogram();
+    public final Histogram nmsScanTime = new Histogram();
+    public final Histogram fallbackScanTime = new Histogram();
+
+    /**
+     * Everything in the Prometheus text exposition format, gauges are added as given
+     */
+    public String toPrometheus(Map<String, Number> gauges) {
+        StringBuilder out = new StringBuilder(4096);
+
+        counter(out, "updates_sent_total", "Hide and reveal packets sent", updatesSent);
+        counter(out, "bytes_sent_total", "Estimated bytes of hide and reveal packets sent", bytesSent);
+        counter(out, "sections_rewritten_total", "Sections hidden inside outgoing chunk packets", sectionsRewritten);
+        counter(out, "columns_resent_total", "Columns revealed by resending the whole chunk", columnsResent);
+        counter(out, "updates_superseded_total", "Queued updates dropped for a newer decision before being scanned or sent", updatesSuperseded);
+        counter(out, "scan_cache_hits_total", "Updates served from the scan cache", cacheHits);
+        counter(out, "scan_cache_misses_total", "Updates that needed a section scan", cacheMisses);
+        counter(out, "block_changes_dropped_total", "Block updates dropped for hidden sections", blockChangesDropped);
+        counter(out, "entity_packets_dropped_total", "Entity packets dropped for hidden entities", entityPacketsDropped);
+        counter(out, "positional_packets_dropped_total", "Sounds and particles dropped below the hide line", positionalPacketsDropped);
+
+        revealLatency.writePrometheus(out, "reveal_latency_seconds", "Time from a reveal being triggered to it being sent");
+        nmsScanTime.writePrometheus(out, "scan_nms_seconds", "Section scans through NMS");
+        fallbackScanTime.writePrometheus(out, "scan_fallback_seconds", "Section scans through the Bukkit API");
+
+        for (Map.Entry<String, Number> gauge : gauges.entrySet()) {
+            String name = "basehider_" + gauge.getKey();
+            out.append("# TYPE ").append(name).append(" gauge\n");
+            out.append(name).append(' ').append(gauge.getValue()).append('\n');
+        }
+        return out.toString();
+    }
+
+    /**
+     * Short human readable summary for /basehider stats
+     */
+    public List<String> summary(Map<String, Number> gauges) {
+        List<String> lines = new ArrayList<>();
+        gauges.forEach((name, value) -> lines.add(name.replace('_', ' ') + ": " + value));
+
+        lines.add("Updates sent: " + updatesSent.sum() + " (" + (bytesSent.sum() / 1024) + " KB)");
+        lines.add("Sections rewritten in chunk packets: " + sectionsRewritten.sum() + ", columns resent: " + columnsResent.sum());
+        lines.add("Reveal latency: p50 " + revealLatency.percentileLabel(0.5) + ", p99 " +
+                revealLatency.percentileLabel(0.99) + " (" + revealLatency.count() + " reveals)");
+        lines.add("Scans: NMS " + nmsScanTime.count() + " (avg " + Math.round(nmsScanTime.meanMicros()) + "µs), fallback " +
+                fallbackScanTime.count() + " (avg " + Math.round(fallbackScanTime.meanMicros()) + "µs)");
+        lines.add("Scan cache: " + cacheHits.sum() + " hits, " + cacheMisses.sum() + " misses");
+        lines.add("Dropped: " + blockChangesDropped.sum() + " block changes, " + entityPacketsDropped.sum() +
+                " entity packets, " + positionalPacketsDropped.sum() + " sounds/particles");
+        return lines;
+    }
+
+    private static void counter(StringBuilder out, String name, String help, LongAdder value) {
+        String full = "basehider_" + name;
+        out.append("# HELP ").append(full).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(full).append(" counter\n");
+        out.append(full).append(' ').append(value.sum()).append('\n');
+    }
+
+    /**
+     * Fixed bucket latency histogram, buckets roughly 1-2.5-5 per decade from 50µs to 5s
+     */
+    public static final class Histogram {
+        private static final long[] BOUNDS_MICROS = {
+                50, 100, 250, 500, 1_000, 2_500, 5_000, 10_000, 25_000, 50_000,
+                100_000, 250_000, 500_000, 1_000_000, 2_500_000, 5_000_000
+        };
+
+        private final LongAdder[] buckets = new LongAdder[BOUNDS_MICROS.length + 1];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sumNanos = new LongAdder();
+
+        public Histogram() {
+            for (int i = 0; i < buckets.length; i++) buckets[i] = new LongAdder();
+        }
+
+        public void record(long nanos) {
+            long micros = nanos / 1000;
+            int i = 0;
+            while (i < BOUNDS_MICROS.length && micros > BOUNDS_MICROS[i]) i++;
+            buckets[i].increment();
+            count.increment();
+            sumNanos.add(nanos);
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        public double meanMicros() {
+            long n = count.sum();
+            return n == 0 ? 0 : sumNanos.sum() / 1000.0 / n;
+        }
+
+        /**
+         * Upper bound of the bucket the percentile falls in
+         */
+        public String percentileLabel(double percentile) {
+            long total = count.sum();
+            if (total == 0) return "-";
+
+            long target = (long) Math.ceil(total * percentile);
+            long seen = 0;
+            for (int i = 0; i < BOUNDS_MICROS.length; i++) {
+                seen += buckets[i].sum();
+                if (seen >= target) return "<" + formatMicros(BOUNDS_MICROS[i]);
+            }
+            return ">" + formatMicros(BOUNDS_MICROS[BOUNDS_MICROS.length - 1]);
+        }
+
+        void writePrometheus(StringBuilder out, String name, String help) {
+            String full = "basehider_" + name;
+            out.append("# HELP ").append(full).append(' ').append(help).append('\n');
+            out.append("# TYPE ").append(full).append(" histogram\n");
+
+            long cumulative = 0;
+            for (int i = 0; i < BOUNDS_MICROS.length; i++) {
+                cumulative += buckets[i].sum();
+                out.append(full).append("_bucket{le=\"").append(BOUNDS_MICROS[i] / 1_000_000.0).append("\"} ")
+                        .append(cumulative).append('\n');
+            }
+            cumulative += buckets[BOUNDS_MICROS.length].sum();
+            out.append(full).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+            out.append(full).append("_sum ").append(sumNanos.sum() / 1_000_000_000.0).append('\n');
+            out.append(full).append("_count ").append(cumulative).append('\n');
+        }
+
+        private static String formatMicros(long micros) {
+            if (micros < 1000) return micros + "µs";
+            if (micros < 1_000_000) return (micros / 1000.0) + "ms";
+            return (micros / 1_000_000.0) + "s";
+        }
+    }
+}
@@ -1,205 +1,539 @@
 package io.github.chanemilia.baseHider;
 
+import com.destroystokyo.paper.event.entity.EntityAddToWorldEvent;
+import com.destroystokyo.paper.event.entity.EntityRemoveFromWorldEvent;
 import com.github.retrooper.packetevents.PacketEvents;
 import com.github.retrooper.packetevents.event.PacketListenerAbstract;
 import com.github.retrooper.packetevents.event.PacketListenerPriority;
 import com.github.retrooper.packetevents.event.PacketSendEvent;
+import com.github.retrooper.packetevents.manager.player.PlayerManager;
 import com.github.retrooper.packetevents.protocol.packettype.PacketType;
 import com.github.retrooper.packetevents.protocol.packettype.PacketTypeCommon;
+import com.github.retrooper.packetevents.protocol.player.ClientVersion;
+import com.github.retrooper.packetevents.protocol.player.User;
+import com.github.retrooper.packetevents.protocol.world.chunk.BaseChunk;
 import com.github.retrooper.packetevents.protocol.world.chunk.Column;
+import com.github.retrooper.packetevents.protocol.world.chunk.TileEntity;
+import com.github.retrooper.packetevents.protocol.world.chunk.impl.v_1_18.Chunk_v1_18;
+import com.github.retrooper.packetevents.protocol.world.chunk.palette.DataPalette;
+import com.github.retrooper.packetevents.protocol.world.chunk.palette.PaletteType;
+import com.github.retrooper.packetevents.protocol.world.chunk.palette.SingletonPalette;
+import com.github.retrooper.packetevents.protocol.world.states.WrappedBlockState;
 import io.github.retrooper.packetevents.util.SpigotConversionUtil;
+import io.netty.channel.Channel;
+import com.github.retrooper.packetevents.util.Vector3d;
 import com.github.retrooper.packetevents.util.Vector3i;
+import com.github.retrooper.packetevents.wrapper.PacketWrapper;
 import com.github.retrooper.packetevents.wrapper.play.server.*;
+import com.github.retrooper.packetevents.wrapper.play.server.WrapperPlayServerMultiBlockChange.EncodedBlock;
 
 import org.bukkit.Bukkit;
+import org.bukkit.Chunk;
 import org.bukkit.ChunkSnapshot;
 import org.bukkit.Location;
 import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
 import org.bukkit.block.data.BlockData;
 import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.entity.Entity;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
+import org.bukkit.event.block.*;
+import org.bukkit.event.entity.EntityChangeBlockEvent;
+import org.bukkit.event.entity.EntityExplodeEvent;
+import org.bukkit.event.entity.EntityTeleportEvent;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
 import org.bukkit.event.player.PlayerMoveEvent;
 import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.event.player.PlayerTeleportEvent;
+import org.bukkit.event.world.WorldUnloadEvent;
 import org.bukkit.scheduler.BukkitRunnable;
 import org.bukkit.scheduler.BukkitTask;
+import org.bukkit.util.Vector;
 
 import java.lang.reflect.Field;
-import java.lang.reflect.Method;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.PriorityBlockingQueue;
 
 public class HiderSystem extends PacketListenerAbstract implements Listener {
 
     private final BaseHider plugin;
-    private final Map<String, WorldConfig> worldConfigs = new HashMap<>();
+    // Both swapped whole on reload, never modified in place
+    private volatile Map<String, WorldConfig> worldConfigs = Map.of();
 
-    private final Map<String, Boolean> currentStates = new ConcurrentHashMap<>();
+    private final Map<UUID, PlayerState> playerStates = new ConcurrentHashMap<>();
 
-    private final Set<String> hiddenEntities = Collections.synchronizedSet(new HashSet<>());
+    // Saved reveals read at pre-login, held until join since an old session with the same id may still be online
+    // Entries for connections that never made it to join are dropped once older than ARRIVAL_TIMEOUT_NANOS
+    private final Map<UUID, ArrivingReveals> arrivingReveals = new ConcurrentHashMap<>();
 
-    private final PriorityBlockingQueue<PendingUpdate> updateQueue = new PriorityBlockingQueue<>();
-    private final Set<String> pendingKeys = Collections.synchronizedSet(new HashSet<>());
+    private final UpdateScheduler updateQueue = new UpdateScheduler();
 
-    private static final Map<Material, SectionCache> solidCache = new ConcurrentHashMap<>();
+    // Keyed by the full block state, the same material in another state encodes to a different id
+    private static final Map<BlockData, SectionCache> solidCache = new ConcurrentHashMap<>();
+    private static final Map<Integer, Material> materialsById = new ConcurrentHashMap<>();
 
-    private GlobalConfig globalConfig;
+    // Distance from a section's centre to its furthest corner
+    private static final double SECTION_HALF_DIAGONAL = Math.sqrt(3 * 8 * 8);
 
-    private final List<BukkitTask> tasks = new ArrayList<>();
+    // Rough uncompressed sizes for choosing between a column resend and per-section reveals
+    private static final int UNSCANNED_SECTION_BYTES = 6000;  // A cave section, a thousand or two blocks that aren't the replacement
+    private static final int REAL_SECTION_BYTES = 2200;       // 4 bit storage, its palette and biomes
+    private static final int HIDDEN_SECTION_BYTES = 8;        // Single value palettes
+    private static final int SURFACE_SECTION_BYTES = 600;     // Above the hide line, a mix of solid ground and empty air
+    private static final int COLUMN_OVERHEAD_BYTES = 4000;    // Heightmaps, block entities and light
+
+    // Far longer than any login takes, from pre-login to join
+    private static final long ARRIVAL_TIMEOUT_NANOS = 120_000_000_000L;
 
-    private static boolean nmsInitialized = false;
-    private static boolean nmsAvailable = false;
+    // The client rejects bundles with more packets than this
+    private static final int MAX_BUNDLE_PACKETS = 4096;
 
-    private static Field blockDataArrayField;      // PalettedContainer<BlockState>[] or similar
-    private static Field biomeDataField;           // For reference
+    // Column has no setter for its block entities, so the array is swapped for a filtered copy. Null if that's not possible
+    private static final Field COLUMN_TILE_ENTITIES = findTileEntitiesField();
 
-    private static Method palettedContainerGetMethod;  // get(int x, int y, int z)
+    private volatile GlobalConfig globalConfig;
+    private final SectionScanCache scanCache;
+    private final EntityIndex entityIndex = new EntityIndex();
+    private final HiderMetrics metrics = new HiderMetrics();
+    private final MetricsExporter metricsExporter;
+    private final RescanExecutor asyncExecutor;
+    private volatile StateStore stateStore;
 
-    private static Method craftBlockDataFromStateMethod;  // CraftBlockData.fromData(BlockState)
+    private final Map<ColumnId, ColumnCapture> captureQueue = new HashMap<>();
 
-    private static Method blockStateGetBlockMethod;
-    private static Method blockGetMaterialMethod;
+    // Block changes seen in packets waiting for the main thread to check them against the world
+    private final Map<ColumnSection, List<EncodedBlock[]>> unconfirmedChanges = new HashMap<>();
+
+    private final List<BukkitTask> tasks = new ArrayList<>();
+    private BukkitTask rescanTask;
+
+    // Packets about a single entity, dropped while that entity is hidden from the receiving player
+    private static final Set<PacketTypeCommon> ENTITY_PACKETS = Set.of(
+            PacketType.Play.Server.SPAWN_ENTITY,
+            PacketType.Play.Server.DESTROY_ENTITIES,
+            PacketType.Play.Server.ENTITY_TELEPORT,
+            PacketType.Play.Server.ENTITY_POSITION_SYNC,
+            PacketType.Play.Server.ENTITY_RELATIVE_MOVE,
+            PacketType.Play.Server.ENTITY_RELATIVE_MOVE_AND_ROTATION,
+            PacketType.Play.Server.ENTITY_ROTATION,
+            PacketType.Play.Server.ENTITY_HEAD_LOOK,
+            PacketType.Play.Server.ENTITY_METADATA,
+            PacketType.Play.Server.ENTITY_EQUIPMENT,
+            PacketType.Play.Server.ENTITY_VELOCITY,
+            PacketType.Play.Server.ENTITY_STATUS,
+            PacketType.Play.Server.ENTITY_ANIMATION,
+            PacketType.Play.Server.ENTITY_EFFECT,
+            PacketType.Play.Server.REMOVE_ENTITY_EFFECT,
+            PacketType.Play.Server.UPDATE_ATTRIBUTES,
+            PacketType.Play.Server.HURT_ANIMATION,
+            PacketType.Play.Server.DAMAGE_EVENT,
+            PacketType.Play.Server.ENTITY_SOUND_EFFECT
+    );
+
+    // Sounds and effects played at a position, which give away what's going on below the hide line
+    private static final Set<PacketTypeCommon> POSITIONAL_PACKETS = Set.of(
+            PacketType.Play.Server.NAMED_SOUND_EFFECT,
+            PacketType.Play.Server.SOUND_EFFECT,
+            PacketType.Play.Server.PARTICLE,
+            PacketType.Play.Server.BLOCK_ACTION,
+            PacketType.Play.Server.BLOCK_BREAK_ANIMATION,
+            PacketType.Play.Server.EFFECT
+    );
 
     public HiderSystem(BaseHider plugin) {
         super(PacketListenerPriority.NORMAL);
         this.plugin = plugin;
 
         loadConfig();
-        initializeNmsReflection();
+        this.scanCache = new SectionScanCache(globalConfig.scanCacheBlocks);
+        this.asyncExecutor = new RescanExecutor(globalConfig.asyncThreads, plugin.getLogger());
+        this.stateStore = globalConfig.persistState ? new StateStore(plugin.getDataFolder().toPath(), plugin.getLogger()) : null;
+        loadSavedState();
+        runNmsSelfTest();
+        if (COLUMN_TILE_ENTITIES == null) {
+            plugin.getLogger().warning("Can't filter block entities out of chunk packets, hidden sections will still send theirs");
+        }
         plugin.getServer().getPluginManager().registerEvents(this, plugin);
         PacketEvents.getAPI().getEventManager().registerListener(this);
 
         startQueueProcessor();
+        startCaptureProcessor();
         startRescanTask();
+        refreshEntityIndex();
+
+        this.metricsExporter = new MetricsExporter(plugin, this::metricsText);
+        metricsExporter.start(globalConfig);
     }
 
-    private void initializeNmsReflection() {
-        if (nmsInitialized) return;
-        nmsInitialized = true;
+    /**
+     * Checks the NMS adapter against ChunkSnapshot.getBlockData on every section of a spawn chunk before trusting it.
+     * Only runs once per server start, a mismatch leaves every scan on the Bukkit API
+     */
+    private void runNmsSelfTest() {
+        if (NmsAdapter.isTested()) return;
+
+        if (NmsAdapter.failure() != null) {
+            NmsAdapter.markVerified(false);
+            plugin.getLogger().warning("NMS access unavailable, using the standard api for chunk reading: " + NmsAdapter.failure());
+            return;
+        }
+
+        World world = Bukkit.getWorlds().get(0);
+        Chunk chunk = world.getSpawnLocation().getChunk();
+        ChunkSnapshot snapshot = chunk.getChunkSnapshot(false, false, false);
+        int minSection = world.getMinHeight() >> 4;
+        int maxSection = (world.getMaxHeight() >> 4) - 1;
+        // Stone is common enough underground that both the skip and the keep paths get exercised
+        Material replacementMat = Material.STONE;
 
+        String mismatch = null;
         try {
-            Class<?> craftChunkSnapshotClass = Class.forName("org.bukkit.craftbukkit.CraftChunkSnapshot");
+            for (int sy = minSection; sy <= maxSection && mismatch == null; sy++) {
+                SimpleBlockInfo[] expected = scanSectionStandard(snapshot, sy, replacementMat);
 
-            for (Field field : craftChunkSnapshotClass.getDeclaredFields()) {
-                field.setAccessible(true);
-                Class<?> fieldType = field.getType();
-
-                if (fieldType.isArray()) {
-                    String typeName = fieldType.getComponentType().getName();
-                    if (typeName.contains("PalettedContainer") ||
-                            typeName.contains("DataPaletteBlock") ||
-                            typeName.contains("BlockState")) {
-                        blockDataArrayField = field;
-                        plugin.getLogger().info("Found block data array field: " + field.getName() + " of type " + typeName);
-                        break;
+                SimpleBlockInfo[] viaSnapshot = NmsAdapter.scan(NmsAdapter.snapshotSection(snapshot, sy - minSection), replacementMat);
+                if (!sameBlocks(expected, viaSnapshot)) {
+                    mismatch = "snapshot scan differs in section " + sy;
+                    break;
+                }
+
+                if (NmsAdapter.sectionCaptureResolved()) {
+                    Object captured = NmsAdapter.captureSection(world, chunk.getX(), chunk.getZ(), sy - minSection);
+                    if (!sameBlocks(expected, NmsAdapter.scan(captured, replacementMat))) {
+                        NmsAdapter.disableSectionCapture();
+                        plugin.getLogger().warning("Section capture disagreed with the standard api in section " + sy + ", using chunk snapshots");
                     }
                 }
             }
+        } catch (Exception e) {
+            mismatch = e.toString();
+        }
 
-            Class<?> palettedContainerClass = Class.forName("net.minecraft.world.level.chunk.PalettedContainer");
-            palettedContainerGetMethod = palettedContainerClass.getMethod("get", int.class, int.class, int.class);
-            palettedContainerGetMethod.setAccessible(true);
+        NmsAdapter.markVerified(mismatch == null);
+        if (mismatch == null) {
+            plugin.getLogger().info("NMS chunk reading verified" + (NmsAdapter.paletteScanResolved() ? " with palette scanning" : ""));
+        } else {
+            plugin.getLogger().warning("NMS chunk reading failed its self test, using the standard api: " + mismatch);
+        }
+    }
 
-            Class<?> blockStateClass = Class.forName("net.minecraft.world.level.block.state.BlockState");
-            Class<?> craftBlockDataClass = Class.forName("org.bukkit.craftbukkit.block.data.CraftBlockData");
+    /**
+     * Whether two scans found the same blocks, regardless of the order they were found in
+     */
+    private static boolean sameBlocks(SimpleBlockInfo[] a, SimpleBlockInfo[] b) {
+        int lengthA = a == null ? 0 : a.length;
+        int lengthB = b == null ? 0 : b.length;
+        if (lengthA != lengthB) return false;
+        if (lengthA == 0) return true;
+
+        int[] grid = new int[4096];
+        Arrays.fill(grid, -1);
+        for (SimpleBlockInfo info : a) grid[(info.y() << 8) | (info.z() << 4) | info.x()] = info.globalId();
+        for (SimpleBlockInfo info : b) {
+            if (grid[(info.y() << 8) | (info.z() << 4) | info.x()] != info.globalId()) return false;
+        }
+        return true;
+    }
 
-            craftBlockDataFromStateMethod = craftBlockDataClass.getMethod("fromData", blockStateClass);
-            craftBlockDataFromStateMethod.setAccessible(true);
+    @Override
+    public void onPacketSend(PacketSendEvent event) {
+        PacketTypeCommon type = event.getPacketType();
 
-            blockStateGetBlockMethod = blockStateClass.getMethod("getBlock");
-            blockStateGetBlockMethod.setAccessible(true);
+        if (type == PacketType.Play.Server.CHUNK_DATA) {
+            handleChunkData(event);
+        } else if (type == PacketType.Play.Server.UNLOAD_CHUNK) {
+            handleUnloadChunk(event);
+        } else if (type == PacketType.Play.Server.JOIN_GAME || type == PacketType.Play.Server.RESPAWN) {
+            handleWorldReset(event);
+        } else if (isEntityPacket(type)) {
+            handleEntityPacket(event);
+            if (event.isCancelled()) metrics.entityPacketsDropped.increment();
+        } else if (POSITIONAL_PACKETS.contains(type)) {
+            handlePositionalPacket(event);
+            if (event.isCancelled()) metrics.positionalPacketsDropped.increment();
+        } else if (type == PacketType.Play.Server.BLOCK_CHANGE || type == PacketType.Play.Server.MULTI_BLOCK_CHANGE) {
+            handleBlockChange(event);
+            if (event.isCancelled()) metrics.blockChangesDropped.increment();
+        }
+    }
 
-            try {
-                Class<?> craftMagicNumbers = Class.forName("org.bukkit.craftbukkit.util.CraftMagicNumbers");
-                Class<?> blockClass = Class.forName("net.minecraft.world.level.block.Block");
-                blockGetMaterialMethod = craftMagicNumbers.getMethod("getMaterial", blockClass);
-                blockGetMaterialMethod.setAccessible(true);
-            } catch (Exception e) {
-                plugin.getLogger().fine("CraftMagicNumbers.getMaterial not available: " + e.getMessage());
-            }
+    private boolean isEntityPacket(PacketTypeCommon type) {
+        return ENTITY_PACKETS.contains(type);
+    }
 
-            nmsAvailable = blockDataArrayField != null || palettedContainerGetMethod != null;
+    private void handleChunkData(PacketSendEvent event) {
+        Player player = event.getPlayer();
+        if (player == null || !player.isOnline()) return;
 
-            if (nmsAvailable) {
-                plugin.getLogger().info("NMS reflection initialized successfully for Paper 1.21");
-            } else {
-                plugin.getLogger().warning("NMS reflection partially initialized - some optimizations may not be available");
+        WrapperPlayServerChunkData packet = new WrapperPlayServerChunkData(event);
+        Column column = packet.getColumn();
+        int chunkX = column.getX();
+        int chunkZ = column.getZ();
+
+        // Tracked in every world, so a world enabled by a reload already knows what its players have
+        stateOf(player).loadColumn(chunkX, chunkZ);
+
+        WorldConfig config = worldConfigs.get(player.getWorld().getName());
+        if (config == null) return;
+
+        if (globalConfig.rewriteChunks && canRewrite(column)) {
+            if (rewriteColumn(player, column, config)) {
+                event.markForReEncode(true);
             }
+            return;
+        }
 
-        } catch (ClassNotFoundException e) {
-            // Try legacy versioned package structure (Spigot without Paper mappings)
-            tryLegacyNmsInit();
-        } catch (Exception e) {
-            plugin.getLogger().warning("NMS reflection initialization failed: " + e.getMessage());
-            plugin.getLogger().info("Falling back to standard Bukkit API for chunk reading");
-            nmsAvailable = false;
+        Bukkit.getScheduler().runTask(plugin, () ->
+                processNewChunk(player, chunkX, chunkZ, config)
+        );
+    }
+
+    /**
+     * With persist-state on and re-hiding off, sections a player has been shown before stay shown,
+     * across relogs too, rather than being hidden and revealed all over again
+     */
+    private boolean keepRevealed(PlayerState state, UUID worldId, long sectionKey) {
+        return globalConfig.persistState && !globalConfig.rehideChunks && state.wasRevealed(worldId, sectionKey);
+    }
+
+    private void handleUnloadChunk(PacketSendEvent event) {
+        Player player = event.getPlayer();
+        if (player == null) return;
+
+        PlayerState state = playerStates.get(player.getUniqueId());
+        if (state == null) return;
+
+        WrapperPlayServerUnloadChunk packet = new WrapperPlayServerUnloadChunk(event);
+        World world = player.getWorld();
+        state.unloadColumn(packet.getChunkX(), packet.getChunkZ(), world.getMinHeight() >> 4, world.getMaxHeight() >> 4);
+    }
+
+    /**
+     * Join and respawn packets leave the client with an empty world, so nothing from before can still apply.
+     * Keyed off the user since the Bukkit player isn't always available this early in a login
+     */
+    private void handleWorldReset(PacketSendEvent event) {
+        UUID uuid = event.getUser().getUUID();
+        if (uuid == null) return;
+
+        PlayerState state = playerStates.get(uuid);
+        if (state != null) state.resetClientWorld();
+        updateQueue.remove(uuid);
+    }
+
+    private boolean canRewrite(Column column) {
+        BaseChunk[] chunks = column.getChunks();
+        if (chunks == null || chunks.length == 0) return false;
+
+        for (BaseChunk chunk : chunks) {
+            if (!(chunk instanceof Chunk_v1_18)) return false;
         }
+        return true;
     }
 
     /**
-     * Fallback NMS initialization for legacy spigot versions with versioned packages
+     * Swaps hidden sections of an outgoing column for a single value palette of the replacement block
+     * so the real data never leaves the server. Returns true if the column was modified
      */
-    private void tryLegacyNmsInit() {
-        try {
-            String version = Bukkit.getServer().getClass().getPackage().getName().split("\\.")[3];
-            String obcPackage = "org.bukkit.craftbukkit." + version;
-            String nmsPackage = "net.minecraft.server." + version;
-
-            Class<?> craftChunkSnapshotClass = Class.forName(obcPackage + ".CraftChunkSnapshot");
-
-            for (Field field : craftChunkSnapshotClass.getDeclaredFields()) {
-                String fieldName = field.getName().toLowerCase();
-                if (fieldName.contains("block") || fieldName.contains("data")) {
-                    field.setAccessible(true);
-                    blockDataArrayField = field;
-                    plugin.getLogger().info("Found legacy block data field: " + field.getName());
-                    break;
-                }
+    private boolean rewriteColumn(Player player, Column column, WorldConfig config) {
+        BaseChunk[] chunks = column.getChunks();
+        int cx = column.getX();
+        int cz = column.getZ();
+        int minSection = player.getWorld().getMinHeight() >> 4;
+        int maxSection = Math.min(player.getWorld().getMaxHeight() >> 4, config.blockHideY >> 4);
+
+        SectionCache solid = getSolidCache(config);
+        PlayerState state = stateOf(player);
+        boolean changed = false;
+        boolean[] replaced = new boolean[chunks.length];
+
+        if (state.takeResend(cx, cz)) {
+            // One of our bulk reveals, the client keeps exactly what it had hidden apart from what's being revealed
+            for (int sy = minSection; sy <= maxSection; sy++) {
+                int index = sy - minSection;
+                if (index >= chunks.length) break;
+                long sectionKey = getSectionKey(cx, cz, sy);
+                // Whatever else was queued for the column is covered by this packet
+                state.settle(sectionKey);
+                if (!state.isHidden(sectionKey)) continue;
+
+                Chunk_v1_18 original = (Chunk_v1_18) chunks[index];
+                chunks[index] = new Chunk_v1_18(solid.blockCount, solid.palette, original.getBiomeData());
+                replaced[index] = true;
+                changed = true;
             }
+            return stripTileEntities(column, replaced, minSection) || changed;
+        }
+
+        Location loc = player.getLocation();
+        double pX = loc.getX();
+        double pY = loc.getY();
+        double pZ = loc.getZ();
+
+        boolean globalReveal = pY < config.showY;
+        UUID worldId = player.getWorld().getUID();
+
+        for (int sy = minSection; sy <= maxSection; sy++) {
+            int index = sy - minSection;
+            if (index >= chunks.length) break;
 
-            nmsAvailable = blockDataArrayField != null;
+            double sx = (cx << 4) + 8;
+            double syPos = (sy << 4) + 8;
+            double sz = (cz << 4) + 8;
+            double distSq = Math.pow(pX - sx, 2) + Math.pow(pY - syPos, 2) + Math.pow(pZ - sz, 2);
 
-            if (nmsAvailable) {
-                plugin.getLogger().info("Legacy NMS reflection initialized for version " + version);
+            long sectionKey = getSectionKey(cx, cz, sy);
+            // The column can be sent again without an unload, this packet replaces whatever the client had or was owed
+            state.settle(sectionKey);
+
+            if (!globalReveal && distSq > config.showDistanceSq && !keepRevealed(state, worldId, sectionKey)) {
+                Chunk_v1_18 original = (Chunk_v1_18) chunks[index];
+                chunks[index] = new Chunk_v1_18(solid.blockCount, solid.palette, original.getBiomeData());
+                state.setHidden(sectionKey, true);
+                metrics.sectionsRewritten.increment();
+                replaced[index] = true;
+                changed = true;
+            } else {
+                state.setHidden(sectionKey, false);
+                if (globalConfig.persistState) state.setRevealed(worldId, sectionKey, true);
             }
-        } catch (Exception e) {
-            plugin.getLogger().warning("Legacy NMS initialization also failed: " + e.getMessage());
-            nmsAvailable = false;
         }
+
+        return stripTileEntities(column, replaced, minSection) || changed;
     }
 
-    @Override
-    public void onPacketSend(PacketSendEvent event) {
-        if (event.getPacketType() == PacketType.Play.Server.CHUNK_DATA) {
-            handleChunkData(event);
-        } else if (isEntityPacket(event.getPacketType())) {
-            handleEntityPacket(event);
+    /**
+     * Drops the block entities of replaced sections from the column, their positions and NBT would give away
+     * every chest and spawner the palette swap hid. Returns true if any were dropped
+     */
+    private static boolean stripTileEntities(Column column, boolean[] replaced, int minSection) {
+        TileEntity[] tiles = column.getTileEntities();
+        if (tiles == null || tiles.length == 0 || COLUMN_TILE_ENTITIES == null) return false;
+
+        List<TileEntity> kept = new ArrayList<>(tiles.length);
+        for (TileEntity tile : tiles) {
+            int index = (tile.getY() >> 4) - minSection;
+            if (index < 0 || index >= replaced.length || !replaced[index]) kept.add(tile);
+        }
+        if (kept.size() == tiles.length) return false;
+
+        try {
+            COLUMN_TILE_ENTITIES.set(column, kept.toArray(new TileEntity[0]));
+            return true;
+        } catch (IllegalAccessException e) {
+            return false;
         }
     }
 
-    private boolean isEntityPacket(PacketTypeCommon type) {
-        return type == PacketType.Play.Server.SPAWN_ENTITY ||
-                type == PacketType.Play.Server.NAMED_SOUND_EFFECT ||
-                type == PacketType.Play.Server.ENTITY_TELEPORT;
+    private static Field findTileEntitiesField() {
+        for (Field field : Column.class.getDeclaredFields()) {
+            if (field.getType() != TileEntity[].class) continue;
+            try {
+                field.setAccessible(true);
+                return field;
+            } catch (RuntimeException e) {
+                return null;
+            }
+        }
+        return null;
     }
 
-    private void handleChunkData(PacketSendEvent event) {
+    /**
+     * Keeps live block updates from leaking real blocks into sections the player sees as hidden.
+     * The client has nothing but the replacement block there, so the update is simply dropped,
+     * and once confirmed against the world folded into the scan cache so the eventual reveal doesn't need a rescan
+     */
+    private void handleBlockChange(PacketSendEvent event) {
         Player player = event.getPlayer();
         if (player == null || !player.isOnline()) return;
 
         WorldConfig config = worldConfigs.get(player.getWorld().getName());
         if (config == null) return;
 
-        WrapperPlayServerChunkData packet = new WrapperPlayServerChunkData(event);
-        Column column = packet.getColumn();
-        int chunkX = column.getX();
-        int chunkZ = column.getZ();
+        int cx, sy, cz;
+        EncodedBlock[] changes;
+
+        if (event.getPacketType() == PacketType.Play.Server.BLOCK_CHANGE) {
+            WrapperPlayServerBlockChange change = new WrapperPlayServerBlockChange(event);
+            Vector3i pos = change.getBlockPosition();
+            cx = pos.getX() >> 4;
+            sy = pos.getY() >> 4;
+            cz = pos.getZ() >> 4;
+            if (sy > config.blockHideY >> 4) return;
+            changes = new EncodedBlock[]{new EncodedBlock(change.getBlockId(), pos.getX() & 15, pos.getY() & 15, pos.getZ() & 15)};
+        } else {
+            WrapperPlayServerMultiBlockChange change = new WrapperPlayServerMultiBlockChange(event);
+            Vector3i pos = change.getChunkPosition();
+            cx = pos.getX();
+            sy = pos.getY();
+            cz = pos.getZ();
+            if (sy > config.blockHideY >> 4) return;
+            changes = change.getBlocks();
+        }
 
-        Bukkit.getScheduler().runTask(plugin, () ->
-                processNewChunk(player, chunkX, chunkZ, config)
-        );
+        long sectionKey = getSectionKey(cx, cz, sy);
+        Material replacementMat = config.replacementBlock.getMaterial();
+        if (scanCache.differs(player.getWorld().getUID(), sectionKey, changes, id -> materialOf(id) == replacementMat)) {
+            confirmChanges(player.getWorld(), sectionKey, changes, replacementMat);
+        }
+
+        // Goes by what the client has rather than what's decided, a hide still in the queue can be taken back
+        // before it's sent and the client would be left with the section as it was before this change
+        if (stateOf(player).isClientHidden(sectionKey)) {
+            event.setCancelled(true);
+        }
+    }
+
+    /**
+     * Folds the changes that match the world into the scan cache on the next tick. A packet to one player isn't proof
+     * of anything, other plugins send fake blocks, so only what the world really has goes into the shared cache.
+     * Every player receiving the same changes lands in one check per section
+     */
+    private void confirmChanges(World world, long sectionKey, EncodedBlock[] changes, Material replacementMat) {
+        ColumnSection id = new ColumnSection(world.getUID(), sectionKey);
+        boolean first;
+        synchronized (unconfirmedChanges) {
+            List<EncodedBlock[]> queued = unconfirmedChanges.get(id);
+            first = queued == null;
+            if (first) {
+                queued = new ArrayList<>();
+                unconfirmedChanges.put(id, queued);
+            }
+            queued.add(changes);
+        }
+        if (!first) return;
+
+        Bukkit.getScheduler().runTask(plugin, () -> {
+            List<EncodedBlock[]> queued;
+            synchronized (unconfirmedChanges) {
+                queued = unconfirmedChanges.remove(id);
+            }
+
+            int cx = sectionX(sectionKey);
+            int cz = sectionZ(sectionKey);
+            int sy = sectionY(sectionKey);
+            if (queued == null || !world.isChunkLoaded(cx, cz)) return;
+
+            List<EncodedBlock> confirmed = new ArrayList<>();
+            for (EncodedBlock[] batch : queued) {
+                for (EncodedBlock change : batch) {
+                    Block block = world.getBlockAt((cx << 4) + (change.getX() & 15), (sy << 4) + (change.getY() & 15),
+                            (cz << 4) + (change.getZ() & 15));
+                    if (SpigotConversionUtil.fromBukkitBlockData(block.getBlockData()).getGlobalId() == change.getBlockId()) {
+                        confirmed.add(change);
+                    }
+                }
+            }
+            if (confirmed.isEmpty()) return;
+
+            scanCache.fold(world.getUID(), sectionKey, confirmed.toArray(new EncodedBlock[0]),
+                    blockId -> materialOf(blockId) == replacementMat);
+        });
     }
 
     private void handleEntityPacket(PacketSendEvent event) {
@@ -209,32 +543,213 @@ public class HiderSystem extends PacketListenerAbstract implements Listener {
         WorldConfig config = worldConfigs.get(player.getWorld().getName());
         if (config == null || !config.hideEntities) return;
 
-        int entityId;
-        Location entLoc;
+        PlayerState state = stateOf(player);
+        PacketTypeCommon type = event.getPacketType();
+
+        if (type == PacketType.Play.Server.DESTROY_ENTITIES) {
+            for (int id : new WrapperPlayServerDestroyEntities(event).getEntityIds()) {
+                state.untrackEntity(id);
+            }
+            return;
+        }
 
-        if (event.getPacketType() == PacketType.Play.Server.SPAWN_ENTITY) {
+        if (type == PacketType.Play.Server.SPAWN_ENTITY) {
             WrapperPlayServerSpawnEntity spawn = new WrapperPlayServerSpawnEntity(event);
-            entityId = spawn.getEntityId();
-            entLoc = new Location(player.getWorld(), spawn.getPosition().getX(), spawn.getPosition().getY(), spawn.getPosition().getZ());
-        } else if (event.getPacketType() == PacketType.Play.Server.ENTITY_TELEPORT) {
+            Vector3d pos = spawn.getPosition();
+            TrackedEntity tracked = new TrackedEntity(spawn.getEntityId(), pos.getX(), pos.getY(), pos.getZ());
+            state.trackEntity(tracked);
+
+            if (shouldHideEntity(player, config, tracked)) {
+                event.setCancelled(true);
+                tracked.captureSpawn(spawn);
+                state.setEntityHidden(tracked.entityId, true);
+            }
+            return;
+        }
+
+        int entityId;
+        TrackedEntity tracked;
+
+        if (type == PacketType.Play.Server.ENTITY_RELATIVE_MOVE) {
+            WrapperPlayServerEntityRelativeMove move = new WrapperPlayServerEntityRelativeMove(event);
+            entityId = move.getEntityId();
+            tracked = state.trackedEntity(entityId);
+            if (tracked != null) tracked.moveBy(move.getDeltaX(), move.getDeltaY(), move.getDeltaZ());
+        } else if (type == PacketType.Play.Server.ENTITY_RELATIVE_MOVE_AND_ROTATION) {
+            WrapperPlayServerEntityRelativeMoveAndRotation move = new WrapperPlayServerEntityRelativeMoveAndRotation(event);
+            entityId = move.getEntityId();
+            tracked = state.trackedEntity(entityId);
+            if (tracked != null) tracked.moveBy(move.getDeltaX(), move.getDeltaY(), move.getDeltaZ());
+        } else if (type == PacketType.Play.Server.ENTITY_TELEPORT) {
             WrapperPlayServerEntityTeleport tp = new WrapperPlayServerEntityTeleport(event);
             entityId = tp.getEntityId();
-            entLoc = new Location(player.getWorld(), tp.getPosition().getX(), tp.getPosition().getY(), tp.getPosition().getZ());
+            tracked = state.trackedEntity(entityId);
+            if (tracked != null) tracked.moveTo(tp.getPosition().getX(), tp.getPosition().getY(), tp.getPosition().getZ());
+        } else if (type == PacketType.Play.Server.ENTITY_POSITION_SYNC) {
+            WrapperPlayServerEntityPositionSync sync = new WrapperPlayServerEntityPositionSync(event);
+            entityId = sync.getId();
+            Vector3d pos = sync.getValues().getPosition();
+            tracked = state.trackedEntity(entityId);
+            if (tracked != null) tracked.moveTo(pos.getX(), pos.getY(), pos.getZ());
         } else {
+            // Anything else just follows the entity's current visibility
+            filterEntityPacket(event, state, type);
+            return;
+        }
+
+        boolean hidden = state.isEntityHidden(entityId);
+        if (tracked == null) {
+            // Never saw it spawn, so leave it as it was
+            if (hidden) event.setCancelled(true);
+            return;
+        }
+
+        boolean shouldHide = shouldHideEntity(player, config, tracked);
+        if (hidden) {
+            event.setCancelled(true);
+            if (!shouldHide) revealEntity(player, state, entityId);
+        } else if (shouldHide) {
+            event.setCancelled(true);
+            hideEntity(player, state, entityId);
+        }
+    }
+
+    private void filterEntityPacket(PacketSendEvent event, PlayerState state, PacketTypeCommon type) {
+        if (type == PacketType.Play.Server.ENTITY_METADATA) {
+            WrapperPlayServerEntityMetadata metadata = new WrapperPlayServerEntityMetadata(event);
+            if (!state.isEntityHidden(metadata.getEntityId())) return;
+            event.setCancelled(true);
+            TrackedEntity tracked = state.trackedEntity(metadata.getEntityId());
+            if (tracked != null) tracked.captureMetadata(metadata.getEntityMetadata());
+            return;
+        }
+
+        if (type == PacketType.Play.Server.ENTITY_EQUIPMENT) {
+            WrapperPlayServerEntityEquipment equipment = new WrapperPlayServerEntityEquipment(event);
+            if (!state.isEntityHidden(equipment.getEntityId())) return;
+            event.setCancelled(true);
+            TrackedEntity tracked = state.trackedEntity(equipment.getEntityId());
+            if (tracked != null) tracked.captureEquipment(equipment.getEquipment());
+            return;
+        }
+
+        int entityId = readEntityId(event, type);
+        if (state.isEntityHidden(entityId)) event.setCancelled(true);
+    }
+
+    private int readEntityId(PacketSendEvent event, PacketTypeCommon type) {
+        if (type == PacketType.Play.Server.ENTITY_ROTATION) return new WrapperPlayServerEntityRotation(event).getEntityId();
+        if (type == PacketType.Play.Server.ENTITY_HEAD_LOOK) return new WrapperPlayServerEntityHeadLook(event).getEntityId();
+        if (type == PacketType.Play.Server.ENTITY_VELOCITY) return new WrapperPlayServerEntityVelocity(event).getEntityId();
+        if (type == PacketType.Play.Server.ENTITY_STATUS) return new WrapperPlayServerEntityStatus(event).getEntityId();
+        if (type == PacketType.Play.Server.ENTITY_ANIMATION) return new WrapperPlayServerEntityAnimation(event).getEntityId();
+        if (type == PacketType.Play.Server.ENTITY_EFFECT) return new WrapperPlayServerEntityEffect(event).getEntityId();
+        if (type == PacketType.Play.Server.REMOVE_ENTITY_EFFECT) return new WrapperPlayServerRemoveEntityEffect(event).getEntityId();
+        if (type == PacketType.Play.Server.UPDATE_ATTRIBUTES) return new WrapperPlayServerUpdateAttributes(event).getEntityId();
+        if (type == PacketType.Play.Server.HURT_ANIMATION) return new WrapperPlayServerHurtAnimation(event).getEntityId();
+        if (type == PacketType.Play.Server.DAMAGE_EVENT) return new WrapperPlayServerDamageEvent(event).getEntityId();
+        if (type == PacketType.Play.Server.ENTITY_SOUND_EFFECT) return new WrapperPlayServerEntitySoundEffect(event).getEntityId();
+        return -1;
+    }
+
+    private void handlePositionalPacket(PacketSendEvent event) {
+        Player player = event.getPlayer();
+        if (player == null || !player.isOnline()) return;
+
+        WorldConfig config = worldConfigs.get(player.getWorld().getName());
+        if (config == null) return;
+
+        PacketTypeCommon type = event.getPacketType();
+        Vector3i blockPos;
+
+        if (type == PacketType.Play.Server.PARTICLE) {
+            Vector3d pos = new WrapperPlayServerParticle(event).getPosition();
+            if (isHiddenPosition(player, config, pos.getX(), pos.getY(), pos.getZ())) event.setCancelled(true);
             return;
         }
 
-        if (entLoc.getBlockY() > config.blockHideY) return;
-        if (player.getLocation().getY() < config.showY) return;
+        if (type == PacketType.Play.Server.SOUND_EFFECT || type == PacketType.Play.Server.NAMED_SOUND_EFFECT) {
+            // Sound positions are fixed point, in eighths of a block
+            Vector3i pos = type == PacketType.Play.Server.SOUND_EFFECT
+                    ? new WrapperPlayServerSoundEffect(event).getEffectPosition()
+                    : new WrapperPlayServerNamedSoundEffect(event).getEffectPosition();
+            if (isHiddenPosition(player, config, pos.getX() / 8.0, pos.getY() / 8.0, pos.getZ() / 8.0)) {
+                event.setCancelled(true);
+            }
+            return;
+        }
 
-        double distSq = player.getLocation().distanceSquared(entLoc);
+        if (type == PacketType.Play.Server.EFFECT) {
+            WrapperPlayServerEffect effect = new WrapperPlayServerEffect(event);
+            // Global effects like a wither spawning are heard everywhere anyway
+            if (effect.isDisableRelativeVolume()) return;
+            blockPos = effect.getPosition();
+        } else if (type == PacketType.Play.Server.BLOCK_ACTION) {
+            blockPos = new WrapperPlayServerBlockAction(event).getBlockPosition();
+        } else {
+            blockPos = new WrapperPlayServerBlockBreakAnimation(event).getBlockPosition();
+        }
 
-        if (distSq > config.showDistanceSq) {
+        if (isHiddenPosition(player, config, blockPos.getX() + 0.5, blockPos.getY() + 0.5, blockPos.getZ() + 0.5)) {
             event.setCancelled(true);
-            hiddenEntities.add(player.getUniqueId() + "_" + entityId);
         }
     }
 
+    /**
+     * Same rule as sections and entities, something below the hide line is hidden unless the player is close enough
+     */
+    private boolean isHiddenPosition(Player player, WorldConfig config, double x, double y, double z) {
+        if (Math.floor(y) > config.blockHideY) return false;
+
+        Location loc = player.getLocation();
+        if (loc.getY() < config.showY) return false;
+
+        double dx = loc.getX() - x;
+        double dy = loc.getY() - y;
+        double dz = loc.getZ() - z;
+        return dx * dx + dy * dy + dz * dz > config.showDistanceSq;
+    }
+
+    private boolean shouldHideEntity(Player player, WorldConfig config, TrackedEntity tracked) {
+        if (tracked.blockY() > config.blockHideY) return false;
+
+        Location loc = player.getLocation();
+        if (loc.getY() < config.showY) return false;
+
+        return tracked.distanceSquared(loc.getX(), loc.getY(), loc.getZ()) > config.showDistanceSq;
+    }
+
+    private void hideEntity(Player player, PlayerState state, int entityId) {
+        state.setEntityHidden(entityId, true);
+        // Silently, so the listener doesn't take it for the server forgetting the entity
+        PacketEvents.getAPI().getPlayerManager().sendPacketSilently(player, new WrapperPlayServerDestroyEntities(entityId));
+    }
+
+    /**
+     * Spawns a hidden entity back in for the player, straight from packets if it was hidden since spawning,
+     * otherwise by having the server re-pair it on the main thread
+     */
+    private void revealEntity(Player player, PlayerState state, int entityId) {
+        TrackedEntity tracked = state.trackedEntity(entityId);
+        List<PacketWrapper<?>> packets = tracked == null ? null : tracked.takeRespawnPackets();
+        state.setEntityHidden(entityId, false);
+
+        if (packets != null) {
+            for (PacketWrapper<?> packet : packets) {
+                PacketEvents.getAPI().getPlayerManager().sendPacketSilently(player, packet);
+            }
+            return;
+        }
+
+        Bukkit.getScheduler().runTask(plugin, () -> {
+            if (!player.isOnline()) return;
+            Entity entity = SpigotConversionUtil.getEntityById(player.getWorld(), entityId);
+            if (entity == null) return;
+            player.hideEntity(plugin, entity);
+            player.showEntity(plugin, entity);
+        });
+    }
+
     private void processNewChunk(Player player, int cx, int cz, WorldConfig config) {
         if (!player.isOnline()) return;
 
@@ -243,343 +758,1124 @@ public class HiderSystem extends PacketListenerAbstract implements Listener {
         double pY = loc.getY();
         double pZ = loc.getZ();
 
-        if (pY < config.showY) return;
-
+        boolean globalReveal = pY < config.showY;
         int minSection = player.getWorld().getMinHeight() >> 4;
         int maxSection = Math.min(player.getWorld().getMaxHeight() >> 4, config.blockHideY >> 4);
+        PlayerState state = stateOf(player);
+        List<PendingUpdate> hides = new ArrayList<>();
 
         for (int sy = minSection; sy <= maxSection; sy++) {
             long sectionKey = getSectionKey(cx, cz, sy);
-            String stateKey = player.getUniqueId() + "_" + sectionKey;
 
             double sx = (cx << 4) + 8;
             double syPos = (sy << 4) + 8;
             double sz = (cz << 4) + 8;
             double distSq = Math.pow(pX - sx, 2) + Math.pow(pY - syPos, 2) + Math.pow(pZ - sz, 2);
 
-            boolean shouldHide = distSq > config.showDistanceSq;
+            boolean shouldHide = !globalReveal && distSq > config.showDistanceSq &&
+                    !keepRevealed(state, player.getWorld().getUID(), sectionKey);
+
+            // The client has just been sent the real section, anything queued for it before is moot
+            state.settle(sectionKey);
+            state.setHidden(sectionKey, false);
+
+            if (shouldHide) {
+                if (globalConfig.sparseHiding) {
+                    queueUpdate(state, player.getWorld().getUID(), cx, cz, sy, config, true, distSq, sectionKey,
+                            state.decide(sectionKey, true));
+                    continue;
+                }
+
+                state.setHidden(sectionKey, true);
+                SectionCache solid = getSolidCache(config);
+                hides.add(new PendingUpdate(player.getUniqueId(), cx, cz, sy, solid.blocks, 0.0, sectionKey,
+                        solid.estimatedBytes, true, System.nanoTime(), 0));
+            }
+        }
+
+        if (!hides.isEmpty()) sendBatch(player, hides);
+    }
+
+    private void loadConfig() {
+        Map<String, WorldConfig> configs = new HashMap<>();
+        for (String key : plugin.getConfig().getKeys(false)) {
+            if (key.equalsIgnoreCase("performance") || key.equalsIgnoreCase("enabled")) continue;
+
+            ConfigurationSection section = plugin.getConfig().getConfigurationSection(key);
+            if (section != null && section.getBoolean("enabled")) {
+                // Unchanged worlds keep their instance, so their players' sweeps carry on as deltas
+                WorldConfig loaded = new WorldConfig(section);
+                WorldConfig previous = worldConfigs.get(key);
+                configs.put(key, loaded.sameAs(previous) ? previous : loaded);
+            }
+        }
+
+        this.globalConfig = new GlobalConfig(plugin.getConfig().getConfigurationSection("performance"));
+        this.worldConfigs = Map.copyOf(configs);
+    }
+
+    /**
+     * Swaps in the reloaded config file without tearing anything down. Only worlds whose settings changed are looked
+     * at again, and only sections whose state changes under the new settings are queued. Main thread only
+     */
+    public void reload() {
+        GlobalConfig oldGlobal = globalConfig;
+        Map<String, WorldConfig> oldWorlds = worldConfigs;
+        loadConfig();
+
+        applyGlobalChanges(oldGlobal, globalConfig);
+
+        Set<String> names = new HashSet<>(oldWorlds.keySet());
+        names.addAll(worldConfigs.keySet());
+        for (String name : names) {
+            WorldConfig before = oldWorlds.get(name);
+            WorldConfig after = worldConfigs.get(name);
+            if (before == after) continue;
+
+            World world = Bukkit.getWorld(name);
+            if (world == null) continue;
+
+            // Scans leave out the replacement block, so they're only good for the one they were made with
+            if (before != null && (after == null || !after.replacementBlock.equals(before.replacementBlock))) {
+                scanCache.invalidateWorld(world.getUID());
+            }
+            for (Player player : world.getPlayers()) {
+                reconcile(player, before, after);
+            }
+        }
+        refreshEntityIndex();
+    }
+
+    private void applyGlobalChanges(GlobalConfig before, GlobalConfig after) {
+        if (after.rescanInterval != before.rescanInterval) {
+            rescanTask.cancel();
+            tasks.remove(rescanTask);
+            startRescanTask();
+        }
+        if (after.asyncThreads != before.asyncThreads) asyncExecutor.resize(after.asyncThreads);
+        if (after.scanCacheBlocks != before.scanCacheBlocks) scanCache.setMaxBlocks(after.scanCacheBlocks);
+
+        if (after.metricsFileInterval != before.metricsFileInterval || after.metricsPort != before.metricsPort ||
+                !after.metricsBindAddress.equals(before.metricsBindAddress)) {
+            metricsExporter.stop();
+            metricsExporter.start(after);
+        }
+
+        if (after.persistState != before.persistState) {
+            if (after.persistState) {
+                stateStore = new StateStore(plugin.getDataFolder().toPath(), plugin.getLogger());
+                loadSavedState();
+            } else {
+                saveState();
+                stateStore = null;
+            }
+        }
+
+        if (after.rehideChunks != before.rehideChunks) {
+            for (PlayerState state : playerStates.values()) state.requestFullSweep();
+        }
+    }
+
+    /**
+     * Brings what a player in a world whose settings changed sees in line with the new ones. Sections no longer
+     * under the hide line are revealed and the rest re-hidden if the replacement block changed,
+     * then a full sweep with the new settings queues whatever flips with the new distances
+     */
+    private void reconcile(Player player, WorldConfig before, WorldConfig after) {
+        PlayerState state = playerStates.get(player.getUniqueId());
+        if (state != null && before != null) {
+            UUID worldId = player.getWorld().getUID();
+            Location loc = player.getLocation();
+            boolean replaced = after != null && !after.replacementBlock.equals(before.replacementBlock);
+
+            for (long sectionKey : state.hiddenSectionKeys()) {
+                int cx = sectionX(sectionKey);
+                int cz = sectionZ(sectionKey);
+                int sy = sectionY(sectionKey);
+                double distSq = Math.pow(loc.getX() - ((cx << 4) + 8), 2) + Math.pow(loc.getY() - ((sy << 4) + 8), 2) +
+                        Math.pow(loc.getZ() - ((cz << 4) + 8), 2);
+
+                if (after == null || sy > after.blockHideY >> 4) {
+                    // Nothing to send if this only takes back a hide that hadn't gone out
+                    int version = state.decide(sectionKey, false);
+                    if (version != 0) queueUpdate(state, worldId, cx, cz, sy, before, false, distSq, sectionKey, version);
+                } else if (replaced) {
+                    // Always the full hide, a sparse one would leave the old replacement wherever the real block
+                    // is the new one and outline everything underground in two materials
+                    SectionCache solid = getSolidCache(after);
+                    updateQueue.add(new PendingUpdate(state.uuid, cx, cz, sy, solid.blocks, distSq, sectionKey,
+                            solid.estimatedBytes, true, System.nanoTime(), state.redo(sectionKey)));
+                }
+            }
+
+            if (after != null && !globalConfig.rehideChunks) hideNewlyCovered(player, state, before, after);
+
+            if (before.hideEntities && (after == null || !after.hideEntities)) {
+                for (long entityId : state.hiddenEntityIds()) revealEntity(player, state, (int) entityId);
+            }
+        }
+
+        if (after != null) {
+            asyncExecutor.submit(player.getUniqueId(), () -> whatWouldEmiliaDo(player, after));
+        }
+    }
+
+    /**
+     * Hides sections in view that only the new settings put under the hide line or out of show distance.
+     * With rehide-chunks off the sweep leaves shown sections alone, but these were never revealed by walking up to them.
+     * Sections the old settings already hid but the player has been shown stay shown
+     */
+    private void hideNewlyCovered(Player player, PlayerState state, WorldConfig before, WorldConfig after) {
+        Location loc = player.getLocation();
+        if (loc.getBlockY() < after.showY) return;
+
+        World world = player.getWorld();
+        UUID worldId = world.getUID();
+        boolean wasGlobalReveal = loc.getBlockY() < before.showY;
+        int viewDist = player.getClientViewDistance();
+        int centerX = loc.getBlockX() >> 4;
+        int centerZ = loc.getBlockZ() >> 4;
+        int minSection = world.getMinHeight() >> 4;
+        int maxSection = Math.min(world.getMaxHeight() >> 4, after.blockHideY >> 4);
+
+        for (int x = -viewDist; x <= viewDist; x++) {
+            for (int z = -viewDist; z <= viewDist; z++) {
+                int cx = centerX + x;
+                int cz = centerZ + z;
+                if (x*x + z*z > viewDist * viewDist || !state.isColumnLoaded(cx, cz)) continue;
+
+                for (int sy = minSection; sy <= maxSection; sy++) {
+                    double distSq = Math.pow(loc.getX() - ((cx << 4) + 8), 2) + Math.pow(loc.getY() - ((sy << 4) + 8), 2) +
+                            Math.pow(loc.getZ() - ((cz << 4) + 8), 2);
+                    if (distSq <= after.showDistanceSq) continue;
+
+                    long sectionKey = getSectionKey(cx, cz, sy);
+                    boolean hiddenBefore = !wasGlobalReveal && sy <= before.blockHideY >> 4 && distSq > before.showDistanceSq;
+                    if (hiddenBefore || state.isHidden(sectionKey) || keepRevealed(state, worldId, sectionKey)) continue;
+
+                    if (globalConfig.persistState) state.setRevealed(worldId, sectionKey, false);
+                    int version = state.decide(sectionKey, true);
+                    if (version != 0) queueUpdate(state, worldId, cx, cz, sy, after, true, distSq, sectionKey, version);
+                }
+            }
+        }
+    }
+
+    @EventHandler
+    public void onMove(PlayerMoveEvent event) {
+        Location from = event.getFrom();
+        Location to = event.getTo();
+
+        if (from.getBlockX() >> 4 == to.getBlockX() >> 4 &&
+                from.getBlockZ() >> 4 == to.getBlockZ() >> 4 &&
+                from.distanceSquared(to) < 4) {
+            return;
+        }
+
+        Player player = event.getPlayer();
+        WorldConfig config = worldConfigs.get(player.getWorld().getName());
+        if (config == null) return;
+
+        asyncExecutor.submit(player.getUniqueId(), () -> whatWouldEmiliaDo(player, config));
+    }
+
+    /**
+     * Reads the player's saved state off the main thread before they join, so it's ready for their first chunks
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPreLogin(AsyncPlayerPreLoginEvent event) {
+        StateStore store = stateStore;
+        if (store == null || event.getLoginResult() != AsyncPlayerPreLoginEvent.Result.ALLOWED) return;
+
+        long now = System.nanoTime();
+        arrivingReveals.values().removeIf(arriving -> arriving.isExpired(now));
+        arrivingReveals.put(event.getUniqueId(), new ArrivingReveals(store.loadPlayer(event.getUniqueId()), now));
+    }
+
+    /**
+     * Hands the saved reveals to the joining session. A duplicate login's old session has quit by now,
+     * and anything it saved on the way out is merged in too since the pre-login read came before it
+     */
+    @EventHandler(priority = EventPriority.LOWEST)
+    public void onJoin(PlayerJoinEvent event) {
+        UUID uuid = event.getPlayer().getUniqueId();
+        ArrivingReveals arriving = arrivingReveals.remove(uuid);
+        StateStore store = stateStore;
+        if (arriving == null || arriving.isExpired(System.nanoTime()) || store == null) return;
+
+        PlayerState state = stateOf(event.getPlayer());
+        state.restoreRevealed(arriving.revealed());
+        Map<UUID, long[]> staged = store.staged(uuid);
+        if (staged != null) state.restoreRevealed(staged);
+    }
+
+    @EventHandler
+    public void onQuit(PlayerQuitEvent event) {
+        cleanup(event.getPlayer());
+    }
+
+    @EventHandler
+    public void onTeleport(PlayerTeleportEvent event) {
+        PlayerState state = playerStates.get(event.getPlayer().getUniqueId());
+        if (state != null) state.requestFullSweep();
+    }
+
+    private void startRescanTask() {
+        rescanTask = new BukkitRunnable() {
+            @Override
+            public void run() {
+                refreshEntityIndex();
+
+                for (Player p : Bukkit.getOnlinePlayers()) {
+                    WorldConfig cfg = worldConfigs.get(p.getWorld().getName());
+                    if (cfg != null) {
+                        asyncExecutor.submit(p.getUniqueId(), () -> whatWouldEmiliaDo(p, cfg));
+                    }
+                }
+            }
+        }.runTaskTimer(plugin, globalConfig.rescanInterval, globalConfig.rescanInterval);
+        tasks.add(rescanTask);
+    }
+
+    private void refreshEntityIndex() {
+        for (World world : Bukkit.getWorlds()) {
+            WorldConfig cfg = worldConfigs.get(world.getName());
+            if (cfg != null && cfg.hideEntities) {
+                entityIndex.refresh(world, cfg.blockHideY);
+            }
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onWorldUnload(WorldUnloadEvent event) {
+        entityIndex.removeWorld(event.getWorld().getUID());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onEntityAdd(EntityAddToWorldEvent event) {
+        WorldConfig cfg = worldConfigs.get(event.getEntity().getWorld().getName());
+        if (cfg != null && cfg.hideEntities) {
+            entityIndex.track(event.getEntity(), cfg.blockHideY);
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onEntityRemove(EntityRemoveFromWorldEvent event) {
+        entityIndex.untrack(event.getEntity());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onEntityTeleport(EntityTeleportEvent event) {
+        Location to = event.getTo();
+        if (to == null || to.getWorld() == null) return;
+
+        entityIndex.untrack(event.getEntity());
+        WorldConfig cfg = worldConfigs.get(to.getWorld().getName());
+        if (cfg != null && cfg.hideEntities) {
+            entityIndex.track(event.getEntity(), to, cfg.blockHideY);
+        }
+    }
+
+    private void startQueueProcessor() {
+        tasks.add(new BukkitRunnable() {
+            @Override
+            public void run() {
+                long byteBudget = Math.max(UpdateScheduler.MAX_SECTION_BYTES, (long) (globalConfig.bytesPerTick * serverLoadFactor()));
+                Map<UUID, List<PendingUpdate>> batches = new HashMap<>();
+                List<PendingUpdate> resends = new ArrayList<>();
+
+                int superseded = updateQueue.drain(globalConfig.updatesPerTick, globalConfig.playerUpdatesPerTick, byteBudget,
+                        HiderSystem.this::playerByteQuantum, HiderSystem.this::viewOf, globalConfig.viewPriority,
+                        HiderSystem.this::isCurrent, update -> {
+                    if (update.resend != null) {
+                        resends.add(update);
+                        return;
+                    }
+                    PlayerState state = playerStates.get(update.playerUUID);
+                    if (state == null || !state.complete(update.sectionKey, update.version)) return;
+
+                    batches.computeIfAbsent(update.playerUUID, k -> new ArrayList<>()).add(update);
+                });
+                metrics.updatesSuperseded.add(superseded);
+
+                batches.forEach((uuid, updates) -> {
+                    Player p = Bukkit.getPlayer(uuid);
+                    if (p != null && p.isOnline()) {
+                        sendBatch(p, updates);
+                    }
+                });
+
+                for (PendingUpdate update : resends) {
+                    Player p = Bukkit.getPlayer(update.playerUUID);
+                    PlayerState state = playerStates.get(update.playerUUID);
+                    if (p != null && p.isOnline() && state != null) {
+                        resendColumn(p, state, update.resend, update.triggeredAt);
+                    }
+                }
+            }
+        }.runTaskTimer(plugin, 1, 1));
+    }
+
+    /**
+     * Whether a queued update still carries the latest decision for its section. It stops being current once the
+     * section is decided again, or dropped with its column or world
+     */
+    private boolean isCurrent(PendingUpdate update) {
+        PlayerState state = playerStates.get(update.playerUUID);
+        if (state == null) return false;
+        if (update.resend == null) return state.isCurrent(update.sectionKey, update.version);
+
+        // A resend is still worth sending while any of its reveals is
+        for (SectionFlip flip : update.resend.flips) {
+            if (state.isCurrent(flip.sectionKey, flip.version)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Scales the byte budget down once the server starts running behind, to a quarter at 50 MSPT
+     */
+    private double serverLoadFactor() {
+        double mspt = Bukkit.getAverageTickTime();
+        if (mspt <= globalConfig.targetMspt) return 1.0;
+        if (globalConfig.targetMspt >= 50) return 0.25;
+
+        double factor = (50 - mspt) / (50 - globalConfig.targetMspt);
+        return Math.max(0.25, Math.min(1.0, factor));
+    }
+
+    /**
+     * Byte credit a player earns each tick. Nothing while netty has marked the connection unwritable and never more
+     * than fits before it would be, then scaled down for high ping, which lags a backlog but catches slow links
+     */
+    private long playerByteQuantum(UUID uuid) {
+        Player p = Bukkit.getPlayer(uuid);
+        if (p == null) return globalConfig.playerBytesPerTick;
+
+        long quantum = globalConfig.playerBytesPerTick;
+        User user = PacketEvents.getAPI().getPlayerManager().getUser(p);
+        if (user != null && user.getChannel() instanceof Channel channel) {
+            if (!channel.isWritable()) return 0;
+            quantum = Math.min(quantum, channel.bytesBeforeUnwritable());
+        }
+
+        int ping = p.getPing();
+        if (ping <= globalConfig.slowPingMs) return quantum;
+
+        double factor = Math.max(0.25, (double) globalConfig.slowPingMs / ping);
+        return (long) (quantum * factor);
+    }
+
+    private UpdateScheduler.View viewOf(UUID uuid) {
+        if (globalConfig.viewPriority <= 0) return null;
+
+        Player p = Bukkit.getPlayer(uuid);
+        if (p == null) return null;
+
+        Location eye = p.getEyeLocation();
+        Vector dir = eye.getDirection();
+        return new UpdateScheduler.View(eye.getX(), eye.getY(), eye.getZ(), dir.getX(), dir.getY(), dir.getZ());
+    }
+
+    static int estimatePacketBytes(EncodedBlock[] blocks) {
+        if (blocks == null) return 0;
+
+        // Packet id, length prefix, section position and entry count
+        int bytes = 14;
+        for (EncodedBlock block : blocks) {
+            long entry = ((long) block.getBlockId() << 12) | 0xFFF;
+            bytes += (64 - Long.numberOfLeadingZeros(entry) + 6) / 7;
+        }
+        return bytes;
+    }
+
+    /**
+     * Writes a player's updates without flushing, inside a bundle where the client supports one so they all apply
+     * in the same frame, then flushes once
+     */
+    private void sendBatch(Player player, List<PendingUpdate> updates) {
+        PlayerManager players = PacketEvents.getAPI().getPlayerManager();
+        User user = players.getUser(player);
+        if (user == null) return;
+
+        ClientVersion version = user.getClientVersion();
+        boolean bundle = globalConfig.bundleUpdates && updates.size() > 1 && updates.size() < MAX_BUNDLE_PACKETS &&
+                version != null && version.isNewerThanOrEquals(ClientVersion.V_1_19_4);
+
+        if (bundle) players.writePacketSilently(player, new WrapperPlayServerBundle());
+        for (PendingUpdate update : updates) writeProtocolPacket(player, update);
+        if (bundle) players.writePacketSilently(player, new WrapperPlayServerBundle());
+
+        user.flushPackets();
+    }
+
+    private void writeProtocolPacket(Player player, PendingUpdate update) {
+        if (update.blocks == null || update.blocks.length == 0) return;
+
+        // Blocks are section relative and never modified when written, so the same array can go out in many packets
+        WrapperPlayServerMultiBlockChange packet = new WrapperPlayServerMultiBlockChange(
+                new Vector3i(update.chunkX, update.sectionY, update.chunkZ),
+                false,
+                update.blocks
+        );
+
+        // Silently, so the block change filter doesn't drop our own hides
+        PacketEvents.getAPI().getPlayerManager().writePacketSilently(player, packet);
+
+        metrics.updatesSent.increment();
+        metrics.bytesSent.add(update.estimatedBytes);
+        if (!update.hide) metrics.revealLatency.record(System.nanoTime() - update.triggeredAt);
+    }
+
+    private void whatWouldEmiliaDo(Player player, WorldConfig config) {
+        if (!player.isOnline()) return;
+
+        Location loc = player.getLocation();
+        int centerX = loc.getBlockX() >> 4;
+        int centerZ = loc.getBlockZ() >> 4;
+
+        int viewDist = player.getClientViewDistance();
+        double showDistSq = config.showDistanceSq;
+        boolean globalReveal = loc.getBlockY() < config.showY;
+
+        int minSection = player.getWorld().getMinHeight() >> 4;
+        int maxSection = Math.min(player.getWorld().getMaxHeight() >> 4, config.blockHideY >> 4);
+        PlayerState state = stateOf(player);
+
+        double pX = loc.getX();
+        double pY = loc.getY();
+        double pZ = loc.getZ();
+
+        UUID worldId = player.getWorld().getUID();
+        PlayerState.SweepOrigin previous = state.startSweep(worldId, config, pX, pY, pZ, viewDist, globalReveal);
+
+        // Reveals are held back per column to pick between section updates and a column resend
+        Map<Long, List<SectionFlip>> reveals = canBulkReveal() ? new HashMap<>() : null;
+
+        sweepSections(state, previous, pX, pY, pZ, centerX, centerZ, viewDist, minSection, maxSection, showDistSq,
+                globalReveal, globalConfig.rehideChunks,
+                (cx, cz, sy, hide, distSq, sectionKey, version) -> {
+                    if (globalConfig.persistState) state.setRevealed(worldId, sectionKey, !hide);
+                    if (version == 0) return;
+                    if (!hide && reveals != null) {
+                        reveals.computeIfAbsent(((long) cx << 32) | (cz & 0xFFFFFFFFL), k -> new ArrayList<>())
+                                .add(new SectionFlip(cx, cz, sy, distSq, sectionKey, version));
+                        return;
+                    }
+                    queueUpdate(state, worldId, cx, cz, sy, config, hide, distSq, sectionKey, version);
+                });
+
+        if (reveals != null && !reveals.isEmpty()) {
+            revealColumns(player, state, worldId, config, minSection, maxSection, reveals.values());
+        }
+
+        if (config.hideEntities) {
+            updateEntityVisibility(player, config);
+        }
+    }
+
+    private boolean canBulkReveal() {
+        return globalConfig.bulkReveal && globalConfig.rewriteChunks && NmsAdapter.canResendColumns();
+    }
+
+    /**
+     * Reveals each column's sections with one update per section, or by resending the whole column with the rest
+     * of the hide mask applied when that's estimated to be smaller
+     */
+    private void revealColumns(Player player, PlayerState state, UUID worldId, WorldConfig config, int minSection,
+                               int maxSection, Collection<List<SectionFlip>> columns) {
+        int surfaceSections = Math.max(0, (player.getWorld().getMaxHeight() >> 4) - maxSection - 1);
+
+        for (List<SectionFlip> flips : columns) {
+            if (flips.size() > 1) {
+                SectionFlip first = flips.get(0);
+                int columnBytes = estimateColumnBytes(state, first.cx, first.cz, minSection, maxSection, surfaceSections);
+                if (columnBytes < estimateRevealBytes(worldId, flips)) {
+                    queueResend(state, worldId, config, flips, columnBytes);
+                    continue;
+                }
+            }
+            for (SectionFlip flip : flips) {
+                queueUpdate(state, worldId, flip.cx, flip.cz, flip.sy, config, false, flip.distSq, flip.sectionKey, flip.version);
+            }
+        }
+    }
+
+    /**
+     * Queues the column's resend with the section updates so it waits for the player's share of the budget like they do.
+     * It's ranked by its nearest section, and charged at most a section's worth so it always fits a tick's budget
+     */
+    private void queueResend(PlayerState state, UUID worldId, WorldConfig config, List<SectionFlip> flips, int columnBytes) {
+        SectionFlip nearest = flips.get(0);
+        for (SectionFlip flip : flips) {
+            if (flip.distSq < nearest.distSq) nearest = flip;
+        }
+        updateQueue.add(new PendingUpdate(state.uuid, nearest.cx, nearest.cz, nearest.sy, null, nearest.distSq,
+                nearest.sectionKey, Math.min(columnBytes, UpdateScheduler.MAX_SECTION_BYTES), false, System.nanoTime(),
+                nearest.version, new ColumnResend(worldId, config, flips)));
+    }
+
+    private void resendColumn(Player player, PlayerState state, ColumnResend resend, long triggeredAt) {
+        UUID worldId = resend.worldId;
+        WorldConfig config = resend.config;
+        List<SectionFlip> flips = resend.flips;
+
+        // Reveals decided against again since, or dropped with their column or world, are left out
+        List<SectionFlip> current = new ArrayList<>(flips.size());
+        for (SectionFlip flip : flips) {
+            if (state.isCurrent(flip.sectionKey, flip.version)) current.add(flip);
+        }
+        metrics.updatesSuperseded.add(flips.size() - current.size());
+        if (current.isEmpty()) return;
+        flips = current;
+
+        int cx = flips.get(0).cx;
+        int cz = flips.get(0).cz;
+        World world = player.getWorld();
+
+        if (NmsAdapter.canResendColumns() && world.getUID().equals(worldId) && world.isChunkLoaded(cx, cz) &&
+                state.isColumnLoaded(cx, cz)) {
+            state.expectResend(cx, cz);
+            try {
+                NmsAdapter.resendColumn(player, world, cx, cz);
+
+                for (SectionFlip flip : flips) state.complete(flip.sectionKey, flip.version);
+                metrics.columnsResent.increment();
+                metrics.revealLatency.record(System.nanoTime() - triggeredAt);
+                return;
+            } catch (Exception e) {
+                plugin.getLogger().warning("Column resend failed, revealing section by section: " + e.getMessage());
+                NmsAdapter.disableColumnResend();
+                state.takeResend(cx, cz);
+            }
+        }
+
+        for (SectionFlip flip : flips) {
+            queueUpdate(state, worldId, flip.cx, flip.cz, flip.sy, config, false, flip.distSq, flip.sectionKey, flip.version);
+        }
+    }
+
+    /**
+     * Rough size of the column's chunk packet with the player's current hide mask, uncompressed
+     */
+    private static int estimateColumnBytes(PlayerState state, int cx, int cz, int minSection, int maxSection, int surfaceSections) {
+        int bytes = COLUMN_OVERHEAD_BYTES + surfaceSections * SURFACE_SECTION_BYTES;
+        for (int sy = minSection; sy <= maxSection; sy++) {
+            bytes += state.isHidden(getSectionKey(cx, cz, sy)) ? HIDDEN_SECTION_BYTES : REAL_SECTION_BYTES;
+        }
+        return bytes;
+    }
+
+    /**
+     * Size of revealing the sections one MultiBlockChange each, exact for cached scans and guessed for the rest
+     */
+    private int estimateRevealBytes(UUID worldId, List<SectionFlip> flips) {
+        int bytes = 0;
+        for (SectionFlip flip : flips) {
+            EncodedBlock[] cached = scanCache.get(worldId, flip.sectionKey);
+            bytes += cached != null ? estimatePacketBytes(cached) : UNSCANNED_SECTION_BYTES;
+        }
+        return bytes;
+    }
+
+    /**
+     * Flips every section in view whose hide state no longer matches the player's position, superseding anything
+     * still queued for it, and hands it to the sink. With a previous origin only sections that can have changed
+     * since are looked at
+     */
+    static void sweepSections(PlayerState state, PlayerState.SweepOrigin previous, double pX, double pY, double pZ,
+                              int centerX, int centerZ, int viewDist, int minSection, int maxSection, double showDistSq,
+                              boolean globalReveal, boolean rehide, SectionSink sink) {
+        int reach = viewDist;
+
+        if (previous != null) {
+            double moveSq = Math.pow(pX - previous.x(), 2) + Math.pow(pY - previous.y(), 2) + Math.pow(pZ - previous.z(), 2);
+            double showDist = Math.sqrt(showDistSq);
+
+            if (moveSq > showDistSq) {
+                // Moved further than the reveal sphere itself, cheaper to just sweep everything
+                previous = null;
+            } else if (moveSq == 0) {
+                reach = -1;
+            } else {
+                // A section can only flip if its centre is within show-distance + moved distance of the player
+                double outer = showDist + Math.sqrt(moveSq) + SECTION_HALF_DIAGONAL;
+                reach = Math.min(viewDist, (int) Math.ceil(outer / 16) + 1);
+                minSection = Math.max(minSection, (int) Math.floor((pY - outer) / 16));
+                maxSection = Math.min(maxSection, (int) Math.floor((pY + outer) / 16));
+            }
+        }
+
+        for (int x = -reach; x <= reach; x++) {
+            for (int z = -reach; z <= reach; z++) {
+                int cx = centerX + x;
+                int cz = centerZ + z;
+
+                if (x*x + z*z > viewDist * viewDist) continue;
+                // The client's own chunk data is rewritten when the column arrives
+                if (!state.isColumnLoaded(cx, cz)) continue;
+
+                for (int sy = minSection; sy <= maxSection; sy++) {
+                    double sx = (cx << 4) + 8;
+                    double syPos = (sy << 4) + 8;
+                    double sz = (cz << 4) + 8;
+                    double distSq = Math.pow(pX - sx, 2) + Math.pow(pY - syPos, 2) + Math.pow(pZ - sz, 2);
+
+                    if (previous != null) {
+                        double oldDistSq = Math.pow(previous.x() - sx, 2) + Math.pow(previous.y() - syPos, 2) + Math.pow(previous.z() - sz, 2);
+                        if ((oldDistSq > showDistSq) == (distSq > showDistSq)) continue;
+                    }
+
+                    long sectionKey = getSectionKey(cx, cz, sy);
+
+                    boolean shouldHide = !globalReveal && distSq > showDistSq;
+                    boolean isHidden = state.isHidden(sectionKey);
+
+                    if (shouldHide != isHidden) {
+                        // Taking back a reveal that never went out is always fine, re-hiding only if enabled
+                        if (shouldHide && !rehide && !state.isPending(sectionKey)) {
+                            continue;
+                        }
+
+                        sink.flip(cx, cz, sy, shouldHide, distSq, sectionKey, state.decide(sectionKey, shouldHide));
+                    }
+                }
+            }
+        }
+    }
+
+    private void updateEntityVisibility(Player player, WorldConfig config) {
+        Bukkit.getScheduler().runTask(plugin, () -> {
+            if (!player.isOnline()) return;
+
+            PlayerState state = stateOf(player);
+            UUID worldId = player.getWorld().getUID();
+            Location pLoc = player.getLocation();
+            double pX = pLoc.getX();
+            double pY = pLoc.getY();
+            double pZ = pLoc.getZ();
+
+            boolean hidingActive = pY >= config.showY;
+            int range = player.getClientViewDistance() + 2;
+            int centerX = pLoc.getBlockX() >> 4;
+            int centerZ = pLoc.getBlockZ() >> 4;
+            double showDist = Math.sqrt(config.showDistanceSq);
+
+            PlayerState.EntitySweep previous = state.startEntitySweep(new PlayerState.EntitySweep(worldId, config,
+                    pX, pY, pZ, hidingActive, centerX, centerZ, range, entityIndex.generation()));
+            if (previous != null && (!previous.world().equals(worldId) || previous.config() != config)) previous = null;
+
+            for (int cx = centerX - range; cx <= centerX + range; cx++) {
+                for (int cz = centerZ - range; cz <= centerZ + range; cz++) {
+                    for (EntityIndex.Bucket bucket : entityIndex.bucketsIn(worldId, cx, cz)) {
+                        int decision = bucketDecision(bucket, pX, pY, pZ, hidingActive, showDist);
+
+                        // Wholly on the same side of the sphere as last time with nobody new in it, nothing to redo
+                        if (decision != 0 && previous != null && bucket.changedAt <= previous.generation() &&
+                                Math.abs(cx - previous.centerX()) <= previous.range() &&
+                                Math.abs(cz - previous.centerZ()) <= previous.range() &&
+                                decision == bucketDecision(bucket, previous.x(), previous.y(), previous.z(),
+                                        previous.hidingActive(), showDist)) {
+                            continue;
+                        }
+
+                        for (Entity entity : bucket.entities.values()) {
+                            if (entity.getEntityId() == player.getEntityId()) continue;
 
-            if (shouldHide) {
-                currentStates.put(stateKey, true);
-                SectionCache solid = getSolidCache(config);
-                PendingUpdate update = new PendingUpdate(player.getUniqueId(), cx, cz, sy, solid.blockInfo, 0.0, stateKey);
-                sendProtocolPacket(player, update);
+                            boolean shouldHide = decision > 0 ||
+                                    (decision == 0 && pLoc.distanceSquared(entity.getLocation()) > config.showDistanceSq);
+                            setEntityVisibility(player, state, entity, shouldHide);
+                        }
+                    }
+                }
             }
-        }
+
+            // Hidden entities that have since left the index (moved up or despawned)
+            for (long id : state.hiddenEntityIds()) {
+                int entityId = (int) id;
+                if (!entityIndex.contains(worldId, entityId)) revealEntity(player, state, entityId);
+            }
+        });
     }
 
-    private void loadConfig() {
-        this.globalConfig = new GlobalConfig(plugin.getConfig().getConfigurationSection("performance"));
+    /**
+     * Whole bucket decided at once, 1 if everything in it is hidden, -1 if everything is shown
+     * and 0 if the reveal sphere cuts through it
+     */
+    private static int bucketDecision(EntityIndex.Bucket bucket, double pX, double pY, double pZ, boolean hidingActive,
+                                      double showDist) {
+        if (!hidingActive) return -1;
+
+        double dist = Math.sqrt(Math.pow(pX - ((bucket.cx << 4) + 8), 2) +
+                Math.pow(pY - ((bucket.sy << 4) + 8), 2) + Math.pow(pZ - ((bucket.cz << 4) + 8), 2));
+        if (dist - SECTION_HALF_DIAGONAL > showDist) return 1;
+        if (dist + SECTION_HALF_DIAGONAL <= showDist) return -1;
+        return 0;
+    }
 
-        for (String key : plugin.getConfig().getKeys(false)) {
-            if (key.equalsIgnoreCase("performance") || key.equalsIgnoreCase("enabled")) continue;
+    private void setEntityVisibility(Player player, PlayerState state, Entity entity, boolean shouldHide) {
+        int entityId = entity.getEntityId();
+        boolean isCurrentlyHidden = state.isEntityHidden(entityId);
 
-            ConfigurationSection section = plugin.getConfig().getConfigurationSection(key);
-            if (section != null && section.getBoolean("enabled")) {
-                worldConfigs.put(key, new WorldConfig(section));
-            }
+        if (isCurrentlyHidden && !shouldHide) {
+            revealEntity(player, state, entityId);
+        }
+        else if (!isCurrentlyHidden && shouldHide) {
+            hideEntity(player, state, entityId);
         }
     }
 
-    @EventHandler
-    public void onMove(PlayerMoveEvent event) {
-        Location from = event.getFrom();
-        Location to = event.getTo();
-
-        if (from.getBlockX() >> 4 == to.getBlockX() >> 4 &&
-                from.getBlockZ() >> 4 == to.getBlockZ() >> 4 &&
-                from.distanceSquared(to) < 4) {
+    private void queueUpdate(PlayerState state, UUID worldId, int cx, int cz, int sy, WorldConfig config, boolean hide,
+                             double distSq, long sectionKey, int version) {
+        UUID uuid = state.uuid;
+        long now = System.nanoTime();
+        if (hide && !globalConfig.sparseHiding) {
+            SectionCache solid = getSolidCache(config);
+            updateQueue.add(new PendingUpdate(uuid, cx, cz, sy, solid.blocks, distSq, sectionKey, solid.estimatedBytes, true, now, version));
             return;
         }
 
-        Player player = event.getPlayer();
-        WorldConfig config = worldConfigs.get(player.getWorld().getName());
-        if (config == null) return;
-
-        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> whatWouldEmiliaDo(player, config));
-    }
+        if (queueCachedUpdate(state, worldId, cx, cz, sy, config, hide, distSq, sectionKey, version, now)) return;
 
-    @EventHandler
-    public void onQuit(PlayerQuitEvent event) {
-        cleanup(event.getPlayer());
+        // Batched per column and captured once per tick by the capture processor
+        ScanRequest request = new ScanRequest(state, sy, config, hide, distSq, sectionKey, version, now);
+        synchronized (captureQueue) {
+            captureQueue.computeIfAbsent(new ColumnId(worldId, cx, cz), ColumnCapture::new).requests.add(request);
+        }
     }
 
-    private void startRescanTask() {
+    private void startCaptureProcessor() {
         tasks.add(new BukkitRunnable() {
             @Override
             public void run() {
-                for (Player p : Bukkit.getOnlinePlayers()) {
-                    WorldConfig cfg = worldConfigs.get(p.getWorld().getName());
-                    if (cfg != null) {
-                        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> whatWouldEmiliaDo(p, cfg));
-                    }
+                List<ColumnCapture> batch;
+                synchronized (captureQueue) {
+                    if (captureQueue.isEmpty()) return;
+                    batch = new ArrayList<>(captureQueue.values());
+                    captureQueue.clear();
                 }
-            }
-        }.runTaskTimer(plugin, globalConfig.rescanInterval, globalConfig.rescanInterval));
-    }
-
-    private void startQueueProcessor() {
-        tasks.add(new BukkitRunnable() {
-            @Override
-            public void run() {
-                int budget = globalConfig.updatesPerTick;
-                while (budget > 0 && !updateQueue.isEmpty()) {
-                    PendingUpdate update = updateQueue.poll();
-                    if (update == null) continue;
-                    pendingKeys.remove(update.uniqueKey);
 
-                    Player p = Bukkit.getPlayer(update.playerUUID);
-                    if (p != null && p.isOnline()) {
-                        sendProtocolPacket(p, update);
-                    }
-                    budget--;
+                for (ColumnCapture column : batch) {
+                    captureColumn(column);
                 }
             }
         }.runTaskTimer(plugin, 1, 1));
     }
 
-    private void sendProtocolPacket(Player player, PendingUpdate update) {
-        if (update.blockInfo == null || update.blockInfo.length == 0) return;
-
-        WrapperPlayServerMultiBlockChange.EncodedBlock[] blocks = new WrapperPlayServerMultiBlockChange.EncodedBlock[update.blockInfo.length];
+    private void captureColumn(ColumnCapture column) {
+        // Superseded while waiting for this tick, no point capturing anything for them
+        int requested = column.requests.size();
+        column.requests.removeIf(request -> !request.state.isCurrent(request.sectionKey, request.version));
+        metrics.updatesSuperseded.add(requested - column.requests.size());
+        if (column.requests.isEmpty()) return;
 
-        for (int i = 0; i < update.blockInfo.length; i++) {
-            SimpleBlockInfo info = update.blockInfo[i];
-            blocks[i] = new WrapperPlayServerMultiBlockChange.EncodedBlock(info.globalId, info.x, info.y, info.z);
+        World world = Bukkit.getWorld(column.id.world());
+        if (world == null || !world.isChunkLoaded(column.id.cx(), column.id.cz())) {
+            for (ScanRequest request : column.requests) request.state.revert(request.sectionKey, request.version);
+            return;
         }
 
-        WrapperPlayServerMultiBlockChange packet = new WrapperPlayServerMultiBlockChange(
-                new Vector3i(update.chunkX, update.sectionY, update.chunkZ),
-                false,
-                blocks
-        );
+        long cacheVersion = scanCache.version();
+        int worldMinSection = world.getMinHeight() >> 4;
+
+        Map<Integer, Object> sections = captureSections(world, column, worldMinSection);
+        ChunkSnapshot snapshot = sections == null
+                ? world.getChunkAt(column.id.cx(), column.id.cz()).getChunkSnapshot(false, false, false)
+                : null;
 
-        PacketEvents.getAPI().getPlayerManager().sendPacket(player, packet);
+        asyncExecutor.execute(() -> scanColumn(column, sections, snapshot, worldMinSection, cacheVersion));
     }
 
-    private void whatWouldEmiliaDo(Player player, WorldConfig config) {
-        if (!player.isOnline()) return;
+    /**
+     * Copies only the requested sections out of the live chunk, cheap enough to do for every reveal on the main thread.
+     * Returns null if the server internals aren't available, so the caller falls back to a column snapshot
+     */
+    private Map<Integer, Object> captureSections(World world, ColumnCapture column, int worldMinSection) {
+        if (!NmsAdapter.canCaptureSections()) return null;
 
-        Location loc = player.getLocation();
-        int centerX = loc.getBlockX() >> 4;
-        int centerZ = loc.getBlockZ() >> 4;
-        int pY = loc.getBlockY();
+        try {
+            Map<Integer, Object> sections = new HashMap<>();
+            for (ScanRequest request : column.requests) {
+                if (sections.containsKey(request.sy)) continue;
+                sections.put(request.sy, NmsAdapter.captureSection(world, column.id.cx(), column.id.cz(), request.sy - worldMinSection));
+            }
+            return sections;
+        } catch (Exception e) {
+            plugin.getLogger().warning("Section capture failed, using chunk snapshots: " + e.getMessage());
+            NmsAdapter.disableSectionCapture();
+            return null;
+        }
+    }
 
-        int viewDist = player.getClientViewDistance();
-        double showDistSq = config.showDistanceSq;
-        boolean globalReveal = pY < config.showY;
+    private void scanColumn(ColumnCapture column, Map<Integer, Object> sections, ChunkSnapshot snapshot,
+                            int worldMinSection, long cacheVersion) {
+        UUID worldId = column.id.world();
+        int cx = column.id.cx();
+        int cz = column.id.cz();
 
-        int minSection = player.getWorld().getMinHeight() >> 4;
-        int maxSection = Math.min(player.getWorld().getMaxHeight() >> 4, config.blockHideY >> 4);
+        for (ScanRequest request : column.requests) {
+            if (!request.state.isCurrent(request.sectionKey, request.version)) {
+                metrics.updatesSuperseded.increment();
+                continue;
+            }
 
-        for (int x = -viewDist; x <= viewDist; x++) {
-            for (int z = -viewDist; z <= viewDist; z++) {
-                int cx = centerX + x;
-                int cz = centerZ + z;
+            // Several players revealing the same section only scan it once
+            if (queueCachedUpdate(request.state, worldId, cx, cz, request.sy, request.config, request.hide, request.distSq,
+                    request.sectionKey, request.version, request.triggeredAt)) continue;
+
+            SimpleBlockInfo[] result;
+            if (sections != null) {
+                try {
+                    long start = System.nanoTime();
+                    result = NmsAdapter.scan(sections.get(request.sy), request.config.replacementBlock.getMaterial());
+                    metrics.nmsScanTime.record(System.nanoTime() - start);
+                } catch (Exception e) {
+                    plugin.getLogger().warning("Captured section scan failed: " + e.getMessage());
+                    request.state.revert(request.sectionKey, request.version);
+                    continue;
+                }
+            } else {
+                result = scanSection(snapshot, request.sy, worldMinSection, request.config);
+            }
 
-                if (x*x + z*z > viewDist * viewDist) continue;
+            EncodedBlock[] blocks = encodeBlocks(result);
+            scanCache.put(worldId, request.sectionKey, blocks, cacheVersion);
+            if (request.hide) blocks = sparseHide(blocks, request.config);
 
-                for (int sy = minSection; sy <= maxSection; sy++) {
-                    long sectionKey = getSectionKey(cx, cz, sy);
-                    String stateKey = player.getUniqueId() + "_" + sectionKey;
+            if (blocks != null) {
+                updateQueue.add(new PendingUpdate(request.state.uuid, cx, cz, request.sy, blocks, request.distSq,
+                        request.sectionKey, request.hide, request.triggeredAt, request.version));
+            } else {
+                request.state.complete(request.sectionKey, request.version);
+            }
+        }
+    }
 
-                    double sx = (cx << 4) + 8;
-                    double syPos = (sy << 4) + 8;
-                    double sz = (cz << 4) + 8;
-                    double distSq = Math.pow(loc.getX() - sx, 2) + Math.pow(loc.getY() - syPos, 2) + Math.pow(loc.getZ() - sz, 2);
+    private boolean queueCachedUpdate(PlayerState state, UUID worldId, int cx, int cz, int sy, WorldConfig config,
+                                      boolean hide, double distSq, long sectionKey, int version, long triggeredAt) {
+        EncodedBlock[] cached = scanCache.get(worldId, sectionKey);
+        if (cached == null) {
+            metrics.cacheMisses.increment();
+            return false;
+        }
+        metrics.cacheHits.increment();
+        if (hide) cached = sparseHide(cached, config);
 
-                    boolean shouldHide = !globalReveal && distSq > showDistSq;
-                    Boolean isHidden = currentStates.getOrDefault(stateKey, false);
+        if (cached.length > 0) {
+            updateQueue.add(new PendingUpdate(state.uuid, cx, cz, sy, cached, distSq, sectionKey, hide, triggeredAt, version));
+        } else {
+            state.complete(sectionKey, version);
+        }
+        return true;
+    }
 
-                    if (shouldHide != isHidden) {
-                        if (shouldHide && !globalConfig.rehideChunks) {
-                            continue;
-                        }
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockPlace(BlockPlaceEvent event) {
+        invalidateBlock(event.getBlock());
+    }
 
-                        if (pendingKeys.contains(stateKey)) continue;
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockBreak(BlockBreakEvent event) {
+        invalidateBlock(event.getBlock());
+    }
 
-                        if (shouldHide) {
-                            currentStates.put(stateKey, true);
-                        } else {
-                            currentStates.remove(stateKey);
-                        }
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockExplode(BlockExplodeEvent event) {
+        invalidateBlock(event.getBlock());
+        for (Block block : event.blockList()) invalidateBlock(block);
+    }
 
-                        pendingKeys.add(stateKey);
-                        queueUpdate(player.getUniqueId(), cx, cz, sy, config, shouldHide, distSq, stateKey);
-                    }
-                }
-            }
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onEntityExplode(EntityExplodeEvent event) {
+        for (Block block : event.blockList()) invalidateBlock(block);
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPistonExtend(BlockPistonExtendEvent event) {
+        invalidateBlock(event.getBlock());
+        for (Block block : event.getBlocks()) {
+            invalidateBlock(block);
+            invalidateBlock(block.getRelative(event.getDirection()));
         }
+    }
 
-        if (config.hideEntities) {
-            updateEntityVisibility(player, config);
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPistonRetract(BlockPistonRetractEvent event) {
+        invalidateBlock(event.getBlock());
+        for (Block block : event.getBlocks()) {
+            invalidateBlock(block);
+            invalidateBlock(block.getRelative(event.getDirection()));
         }
     }
 
-    private void updateEntityVisibility(Player player, WorldConfig config) {
-        Bukkit.getScheduler().runTask(plugin, () -> {
-            if (!player.isOnline()) return;
-            int radius = (player.getClientViewDistance() + 2) * 16;
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockPhysics(BlockPhysicsEvent event) {
+        invalidateBlock(event.getBlock());
+    }
 
-            for (org.bukkit.entity.Entity entity : player.getNearbyEntities(radius, 512, radius)) {
-                if (entity.getEntityId() == player.getEntityId()) continue;
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockFlow(BlockFromToEvent event) {
+        invalidateBlock(event.getToBlock());
+    }
 
-                String key = player.getUniqueId() + "_" + entity.getEntityId();
-                boolean isCurrentlyHidden = hiddenEntities.contains(key);
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockForm(BlockFormEvent event) {
+        invalidateBlock(event.getBlock());
+    }
 
-                Location loc = entity.getLocation();
-                boolean shouldHide = false;
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockFade(BlockFadeEvent event) {
+        invalidateBlock(event.getBlock());
+    }
 
-                if (loc.getBlockY() <= config.blockHideY && player.getLocation().getY() >= config.showY) {
-                    if (player.getLocation().distanceSquared(loc) > config.showDistanceSq) {
-                        shouldHide = true;
-                    }
-                }
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockGrow(BlockGrowEvent event) {
+        invalidateBlock(event.getBlock());
+    }
 
-                if (isCurrentlyHidden && !shouldHide) {
-                    player.hideEntity(plugin, entity);
-                    player.showEntity(plugin, entity);
-                    hiddenEntities.remove(key);
-                }
-                else if (!isCurrentlyHidden && shouldHide) {
-                    WrapperPlayServerDestroyEntities destroy = new WrapperPlayServerDestroyEntities(entity.getEntityId());
-                    PacketEvents.getAPI().getPlayerManager().sendPacket(player, destroy);
-                    hiddenEntities.add(key);
-                }
-            }
-        });
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockBurn(BlockBurnEvent event) {
+        invalidateBlock(event.getBlock());
     }
 
-    private void queueUpdate(UUID uuid, int cx, int cz, int sy, WorldConfig config, boolean hide, double distSq, String uniqueKey) {
-        if (hide) {
-            SectionCache solid = getSolidCache(config);
-            updateQueue.add(new PendingUpdate(uuid, cx, cz, sy, solid.blockInfo, distSq, uniqueKey));
-            return;
-        }
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onEntityChangeBlock(EntityChangeBlockEvent event) {
+        invalidateBlock(event.getBlock());
+    }
 
-        Bukkit.getScheduler().runTask(plugin, () -> {
-            Player p = Bukkit.getPlayer(uuid);
-            if (p == null || !p.isOnline() || !p.getWorld().isChunkLoaded(cx, cz)) {
-                pendingKeys.remove(uniqueKey);
-                return;
-            }
+    private void invalidateBlock(Block block) {
+        World world = block.getWorld();
+        WorldConfig config = worldConfigs.get(world.getName());
+        if (config == null || block.getY() > ((config.blockHideY >> 4) << 4) + 15) return;
 
-            ChunkSnapshot snapshot = p.getWorld().getChunkAt(cx, cz).getChunkSnapshot(false, false, false);
-            int worldMinSection = p.getWorld().getMinHeight() >> 4;
+        scanCache.invalidate(world.getUID(), getSectionKey(block.getX() >> 4, block.getZ() >> 4, block.getY() >> 4));
+    }
 
-            Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
-                SimpleBlockInfo[] result = scanSection(snapshot, sy, worldMinSection, config);
+    /**
+     * Turns a section's real blocks into a hide that only covers positions that aren't already the replacement block.
+     * Reuses the shared solid encoding, so only the array itself is allocated
+     */
+    private EncodedBlock[] sparseHide(EncodedBlock[] realBlocks, WorldConfig config) {
+        return sparseHide(realBlocks, getSolidCache(config).blocks);
+    }
 
-                if (result != null) {
-                    updateQueue.add(new PendingUpdate(uuid, cx, cz, sy, result, distSq, uniqueKey));
-                } else {
-                    pendingKeys.remove(uniqueKey);
-                }
-            });
-        });
+    static EncodedBlock[] sparseHide(EncodedBlock[] realBlocks, EncodedBlock[] solid) {
+        if (realBlocks == null || realBlocks.length == 0) return realBlocks;
+
+        EncodedBlock[] hide = new EncodedBlock[realBlocks.length];
+        for (int i = 0; i < realBlocks.length; i++) {
+            EncodedBlock real = realBlocks[i];
+            // emiliasPaintBrush lays the solid section out in y, z, x order
+            hide[i] = solid[(real.getY() << 8) | (real.getZ() << 4) | real.getX()];
+        }
+        return hide;
+    }
+
+    static EncodedBlock[] encodeBlocks(SimpleBlockInfo[] infos) {
+        if (infos == null) return null;
+
+        EncodedBlock[] blocks = new EncodedBlock[infos.length];
+        for (int i = 0; i < infos.length; i++) {
+            SimpleBlockInfo info = infos[i];
+            blocks[i] = new EncodedBlock(info.globalId, info.x, info.y, info.z);
+        }
+        return blocks;
     }
 
     private SectionCache getSolidCache(WorldConfig config) {
-        return solidCache.computeIfAbsent(config.replacementBlock.getMaterial(), k -> {
+        return solidCache.computeIfAbsent(config.replacementBlock, k -> {
             SimpleBlockInfo[] res = emiliasPaintBrush(config);
-            return new SectionCache(res);
+            int globalId = res[0].globalId();
+            // Encoded once per replacement block and shared by every hide in every world using it
+            EncodedBlock[] blocks = encodeBlocks(res);
+            DataPalette palette = new DataPalette(new SingletonPalette(globalId), null, PaletteType.CHUNK);
+            int blockCount = config.replacementBlock.getMaterial().isAir() ? 0 : 4096;
+            return new SectionCache(blocks, palette, blockCount, estimatePacketBytes(blocks));
         });
     }
 
     private SimpleBlockInfo[] scanSection(ChunkSnapshot snapshot, int sy, int worldMinSection, WorldConfig config) {
-        if (nmsAvailable) {
+        Material replacementMat = config.replacementBlock.getMaterial();
+
+        if (NmsAdapter.isReady()) {
             try {
-                return scanSectionNms(snapshot, sy, worldMinSection, config);
+                long start = System.nanoTime();
+                SimpleBlockInfo[] result = NmsAdapter.scan(NmsAdapter.snapshotSection(snapshot, sy - worldMinSection), replacementMat);
+                metrics.nmsScanTime.record(System.nanoTime() - start);
+                return result;
             } catch (Exception e) {
-                if (nmsAvailable) {
-                    plugin.getLogger().warning("NMS scan failed, using standard api: " + e.getMessage());
-                }
+                plugin.getLogger().warning("NMS scan failed, using standard api: " + e.getMessage());
             }
         }
-        return scanSectionStandard(snapshot, sy, config);
+
+        long start = System.nanoTime();
+        SimpleBlockInfo[] result = scanSectionStandard(snapshot, sy, replacementMat);
+        metrics.fallbackScanTime.record(System.nanoTime() - start);
+        return result;
     }
 
-    private SimpleBlockInfo[] scanSectionNms(ChunkSnapshot snapshot, int sy, int worldMinSection, WorldConfig config) throws Exception {
-        Material replacementMat = config.replacementBlock.getMaterial();
+    /**
+     * Unpacks a section's bit packed palette indices into every block that isn't the replacement block.
+     * Palette entries are only resolved the first time they turn up
+     */
+    static SimpleBlockInfo[] unpackPalette(long[] raw, int bits, int paletteSize, Material replacementMat,
+                                           PaletteResolver resolver) throws Exception {
+        ResolvedState[] resolved = new ResolvedState[Math.max(1, paletteSize)];
+
+        // Single value section, either all replacement or all one block
+        if (bits == 0 || paletteSize == 1) {
+            ResolvedState state = resolver.resolve(0);
+            if (state == null || state.material == replacementMat) return null;
+
+            SimpleBlockInfo[] infos = new SimpleBlockInfo[4096];
+            for (int i = 0; i < 4096; i++) {
+                infos[i] = new SimpleBlockInfo(state.globalId, i & 15, i >> 8, (i >> 4) & 15);
+            }
+            return infos;
+        }
 
         SimpleBlockInfo[] tempArray = new SimpleBlockInfo[4096];
         int count = 0;
 
-        if (blockDataArrayField != null && palettedContainerGetMethod != null) {
-            Object[] sectionContainers = (Object[]) blockDataArrayField.get(snapshot);
-
-            if (sectionContainers != null) {
-                int sectionIndex = sy - worldMinSection;
-
-                if (sectionIndex >= 0 && sectionIndex < sectionContainers.length) {
-                    Object palettedContainer = sectionContainers[sectionIndex];
-
-                    if (palettedContainer != null) {
-                        for (int y = 0; y < 16; y++) {
-                            for (int z = 0; z < 16; z++) {
-                                for (int x = 0; x < 16; x++) {
-                                    Object blockState = palettedContainerGetMethod.invoke(palettedContainer, x, y, z);
-
-                                    if (blockState != null) {
-                                        BlockData blockData = (BlockData) craftBlockDataFromStateMethod.invoke(null, blockState);
-
-                                        if (blockData.getMaterial() != replacementMat) {
-                                            int globalId = SpigotConversionUtil.fromBukkitBlockData(blockData).getGlobalId();
-                                            tempArray[count++] = new SimpleBlockInfo(globalId, x, y, z);
-                                        }
-                                    }
-                                }
-                            }
-                        }
+        int valuesPerLong = 64 / bits;
+        long mask = (1L << bits) - 1;
+        int i = 0;
 
-                        if (count == 0) return null;
-                        return Arrays.copyOf(tempArray, count);
-                    }
+        for (int cell = 0; cell < raw.length && i < 4096; cell++) {
+            long word = raw[cell];
+            for (int j = 0; j < valuesPerLong && i < 4096; j++, i++) {
+                int paletteIndex = (int) (word & mask);
+                word >>>= bits;
+
+                ResolvedState state = paletteIndex < resolved.length ? resolved[paletteIndex] : null;
+                if (state == null) {
+                    state = resolver.resolve(paletteIndex);
+                    if (state == null) continue;
+                    if (paletteIndex < resolved.length) resolved[paletteIndex] = state;
                 }
-            }
-        }
-
-        if (blockStateGetBlockMethod != null && blockGetMaterialMethod != null &&
-                blockDataArrayField != null && palettedContainerGetMethod != null) {
-
-            Object[] sectionContainers = (Object[]) blockDataArrayField.get(snapshot);
-            int sectionIndex = sy - worldMinSection;
-
-            if (sectionContainers != null && sectionIndex >= 0 && sectionIndex < sectionContainers.length) {
-                Object palettedContainer = sectionContainers[sectionIndex];
-
-                if (palettedContainer != null) {
-                    for (int y = 0; y < 16; y++) {
-                        for (int z = 0; z < 16; z++) {
-                            for (int x = 0; x < 16; x++) {
-                                Object blockState = palettedContainerGetMethod.invoke(palettedContainer, x, y, z);
-
-                                if (blockState != null) {
-                                    Object block = blockStateGetBlockMethod.invoke(blockState);
-                                    Material material = (Material) blockGetMaterialMethod.invoke(null, block);
-
-                                    if (material != replacementMat) {
-                                        BlockData blockData = (BlockData) craftBlockDataFromStateMethod.invoke(null, blockState);
-                                        int globalId = SpigotConversionUtil.fromBukkitBlockData(blockData).getGlobalId();
-                                        tempArray[count++] = new SimpleBlockInfo(globalId, x, y, z);
-                                    }
-                                }
-                            }
-                        }
-                    }
 
-                    if (count == 0) return null;
-                    return Arrays.copyOf(tempArray, count);
+                if (state.material != replacementMat) {
+                    // Storage index is (y << 8) | (z << 4) | x
+                    tempArray[count++] = new SimpleBlockInfo(state.globalId, i & 15, i >> 8, (i >> 4) & 15);
                 }
             }
         }
 
-        throw new IllegalStateException("NMS access incomplete, falling back");
+        if (count == 0) return null;
+        return Arrays.copyOf(tempArray, count);
+    }
+
+    /**
+     * Material of a global block state id, scans leave out the replacement material in any state so folded
+     * block changes have to be compared the same way
+     */
+    private static Material materialOf(int globalId) {
+        return materialsById.computeIfAbsent(globalId,
+                id -> SpigotConversionUtil.toBukkitBlockData(WrappedBlockState.getByGlobalId(id)).getMaterial());
     }
 
-    private SimpleBlockInfo[] scanSectionStandard(ChunkSnapshot snapshot, int sy, WorldConfig config) {
+    private SimpleBlockInfo[] scanSectionStandard(ChunkSnapshot snapshot, int sy, Material replacementMat) {
         int startY = sy << 4;
-        Material replacementMat = config.replacementBlock.getMaterial();
 
         SimpleBlockInfo[] tempArray = new SimpleBlockInfo[4096];
         int count = 0;
@@ -620,29 +1916,217 @@ public class HiderSystem extends PacketListenerAbstract implements Listener {
         return infos;
     }
 
+    private PlayerState stateOf(Player player) {
+        return playerStates.computeIfAbsent(player.getUniqueId(), PlayerState::new);
+    }
+
+    public int getQueueDepth(UUID player) {
+        return updateQueue.depth(player);
+    }
+
+    public Map<UUID, Integer> getQueueDepths() {
+        return updateQueue.depths();
+    }
+
+    public HiderMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Point in time values to go alongside the counters
+     */
+    public Map<String, Number> metricsGauges() {
+        int hiddenSections = 0;
+        int loadedColumns = 0;
+        for (PlayerState state : playerStates.values()) {
+            hiddenSections += state.hiddenSectionCount();
+            loadedColumns += state.loadedColumnCount();
+        }
+
+        Map<String, Number> gauges = new LinkedHashMap<>();
+        gauges.put("players", playerStates.size());
+        gauges.put("queue_depth", updateQueue.totalDepth());
+        gauges.put("hidden_sections", hiddenSections);
+        gauges.put("loaded_columns", loadedColumns);
+        gauges.put("scan_cache_sections", scanCache.size());
+        return gauges;
+    }
+
+    public String metricsText() {
+        return metrics.toPrometheus(metricsGauges());
+    }
+
+    /**
+     * Lines for /basehider stats, global numbers followed by the busiest players
+     */
+    public List<String> statsLines() {
+        List<String> lines = metrics.summary(metricsGauges());
+
+        // Read once up front, both keep changing on other threads and the sort needs them to hold still
+        List<PlayerStats> stats = new ArrayList<>();
+        for (PlayerState state : playerStates.values()) {
+            stats.add(new PlayerStats(state.uuid, updateQueue.depth(state.uuid), state.hiddenSectionCount()));
+        }
+        stats.sort(Comparator.comparingInt(PlayerStats::queued).thenComparingInt(PlayerStats::hidden).reversed());
+        for (PlayerStats entry : stats.subList(0, Math.min(5, stats.size()))) {
+            Player player = Bukkit.getPlayer(entry.uuid());
+            String name = player != null ? player.getName() : entry.uuid().toString();
+            lines.add(name + ": " + entry.hidden() + " hidden, " + entry.queued() + " queued");
+        }
+        return lines;
+    }
+
+    private record PlayerStats(UUID uuid, int queued, int hidden) {}
+
+    /**
+     * Loads what was saved for online players, so a reload doesn't forget what they've been shown,
+     * and the scan cache in the background
+     */
+    private void loadSavedState() {
+        StateStore store = stateStore;
+        if (store == null) return;
+
+        for (Player player : Bukkit.getOnlinePlayers()) {
+            stateOf(player).restoreRevealed(store.loadPlayer(player.getUniqueId()));
+        }
+
+        Map<UUID, Long> worldTimes = worldTimes();
+        asyncExecutor.execute(() -> {
+            int loaded = store.loadScanCache(scanCache, worldTimes);
+            if (loaded > 0) plugin.getLogger().info("Loaded " + loaded + " saved section scans");
+        });
+    }
+
+    /**
+     * Writes every online player's state and the scan cache straight away, on the calling thread
+     */
+    private void saveState() {
+        StateStore store = stateStore;
+        if (store == null) return;
+
+        for (PlayerState state : playerStates.values()) store.stage(state.uuid, state.revealedSnapshot());
+        store.writeAll();
+        store.saveScanCache(scanCache.entries(), worldTimes());
+    }
+
+    private static Map<UUID, Long> worldTimes() {
+        Map<UUID, Long> times = new HashMap<>();
+        for (World world : Bukkit.getWorlds()) times.put(world.getUID(), world.getGameTime());
+        return times;
+    }
+
     public void cleanup(Player player) {
-        String uid = player.getUniqueId().toString();
-        currentStates.keySet().removeIf(k -> k.startsWith(uid));
-        hiddenEntities.removeIf(k -> k.startsWith(uid));
+        PlayerState state = playerStates.remove(player.getUniqueId());
+        StateStore store = stateStore;
+        if (store != null && state != null) {
+            store.stage(state.uuid, state.revealedSnapshot());
+            asyncExecutor.execute(() -> store.write(state.uuid));
+        }
+        updateQueue.remove(player.getUniqueId());
+        asyncExecutor.remove(player.getUniqueId());
     }
 
     public void shutdown() {
         PacketEvents.getAPI().getEventManager().unregisterListener(this);
+        metricsExporter.stop();
         for (BukkitTask t : tasks) t.cancel();
         tasks.clear();
+        asyncExecutor.shutdown();
+        saveState();
         updateQueue.clear();
         solidCache.clear();
-        hiddenEntities.clear();
+        scanCache.clear();
+        synchronized (captureQueue) {
+            captureQueue.clear();
+        }
+        synchronized (unconfirmedChanges) {
+            unconfirmedChanges.clear();
+        }
+        playerStates.clear();
+        arrivingReveals.clear();
+        entityIndex.clear();
     }
 
-    private long getSectionKey(int x, int z, int y) {
+    static long getSectionKey(int x, int z, int y) {
         return ((long)(x & 0xFFFFFF) << 40) | ((long)(z & 0xFFFFFF) << 16) | (y & 0xFFFF);
     }
 
-    private record SimpleBlockInfo(int globalId, int x, int y, int z) {}
+    static int sectionX(long sectionKey) {
+        return (int) (sectionKey >> 40);
+    }
+
+    static int sectionZ(long sectionKey) {
+        return (int) (sectionKey << 24 >> 40);
+    }
+
+    static int sectionY(long sectionKey) {
+        return (short) sectionKey;
+    }
+
+    record SimpleBlockInfo(int globalId, int x, int y, int z) {}
+
+    private record ColumnId(UUID world, int cx, int cz) {}
+
+    private record ArrivingReveals(Map<UUID, long[]> revealed, long readAt) {
+        boolean isExpired(long now) {
+            return now - readAt > ARRIVAL_TIMEOUT_NANOS;
+        }
+    }
+
+    private record ColumnSection(UUID world, long sectionKey) {}
+
+    private record ScanRequest(PlayerState state, int sy, WorldConfig config, boolean hide, double distSq, long sectionKey,
+                               int version, long triggeredAt) {}
+
+    private static final class ColumnCapture {
+        final ColumnId id;
+        final List<ScanRequest> requests = new ArrayList<>();
+
+        ColumnCapture(ColumnId id) {
+            this.id = id;
+        }
+    }
+
+    record ResolvedState(int globalId, Material material) {}
+
+    interface PaletteResolver {
+        ResolvedState resolve(int index) throws Exception;
+    }
+
+    private record SectionFlip(int cx, int cz, int sy, double distSq, long sectionKey, int version) {}
+
+    interface SectionSink {
+        /**
+         * Version is what the update has to carry to be sent, or 0 if the flip only took back one the client never got
+         */
+        void flip(int cx, int cz, int sy, boolean hide, double distSq, long sectionKey, int version);
+    }
+
+    /**
+     * Reveals going out as one resent column instead of section by section
+     */
+    private record ColumnResend(UUID worldId, WorldConfig config, List<SectionFlip> flips) {}
+
+    /**
+     * One hide or reveal on its way to a player, only sent while its version is still the section's latest decision.
+     * Carries a column resend instead of blocks when several reveals are cheaper sent that way
+     */
+    record PendingUpdate(UUID playerUUID, int chunkX, int chunkZ, int sectionY, EncodedBlock[] blocks,
+                         double distSq, long sectionKey, int estimatedBytes, boolean hide, long triggeredAt, int version,
+                         ColumnResend resend)
+            implements Comparable<PendingUpdate> {
+
+        PendingUpdate(UUID playerUUID, int chunkX, int chunkZ, int sectionY, EncodedBlock[] blocks, double distSq,
+                      long sectionKey, int estimatedBytes, boolean hide, long triggeredAt, int version) {
+            this(playerUUID, chunkX, chunkZ, sectionY, blocks, distSq, sectionKey, estimatedBytes, hide, triggeredAt,
+                    version, null);
+        }
 
-    private record PendingUpdate(UUID playerUUID, int chunkX, int chunkZ, int sectionY, SimpleBlockInfo[] blockInfo,
-                                 double distSq, String uniqueKey) implements Comparable<PendingUpdate> {
+        PendingUpdate(UUID playerUUID, int chunkX, int chunkZ, int sectionY, EncodedBlock[] blocks, double distSq,
+                      long sectionKey, boolean hide, long triggeredAt, int version) {
+            this(playerUUID, chunkX, chunkZ, sectionY, blocks, distSq, sectionKey, estimatePacketBytes(blocks), hide,
+                    triggeredAt, version);
+        }
 
         @Override
         public int compareTo(PendingUpdate o) {
@@ -650,6 +2134,6 @@ public class HiderSystem extends PacketListenerAbstract implements Listener {
         }
     }
 
-    private record SectionCache(SimpleBlockInfo[] blockInfo) {
+    private record SectionCache(EncodedBlock[] blocks, DataPalette palette, int blockCount, int estimatedBytes) {
     }
 }
\ No newline at end of file
@@ -0,0 +1,80 @@
+package io.github.chanemilia.baseHider;
+
+import com.sun.net.httpserver.HttpServer;
+import org.bukkit.Bukkit;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.function.Supplier;
+
+/**
+ * Publishes metrics in the Prometheus text format, as a file rewritten every few seconds
+ * and/or a plain HTTP endpoint at /metrics. Both are off by default
+ */
+public class MetricsExporter {
+    private final BaseHider plugin;
+    private final Supplier<String> source;
+
+    private HttpServer server;
+    private BukkitTask fileTask;
+
+    public MetricsExporter(BaseHider plugin, Supplier<String> source) {
+        this.plugin = plugin;
+        this.source = source;
+    }
+
+    public void start(GlobalConfig config) {
+        if (config.metricsFileInterval > 0) {
+            Path file = plugin.getDataFolder().toPath().resolve("metrics.prom");
+            long period = config.metricsFileInterval * 20L;
+            fileTask = Bukkit.getScheduler().runTaskTimerAsynchronously(plugin, () -> writeFile(file), period, period);
+        }
+
+        if (config.metricsPort > 0) {
+            try {
+                server = HttpServer.create(new InetSocketAddress(config.metricsBindAddress, config.metricsPort), 0);
+                server.createContext("/metrics", exchange -> {
+                    byte[] body = source.get().getBytes(StandardCharsets.UTF_8);
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    try (OutputStream out = exchange.getResponseBody()) {
+                        out.write(body);
+                    }
+                });
+                server.start();
+                plugin.getLogger().info("Metrics available at http://" + config.metricsBindAddress + ":" + config.metricsPort + "/metrics");
+            } catch (IOException e) {
+                plugin.getLogger().warning("Couldn't start metrics endpoint: " + e.getMessage());
+                server = null;
+            }
+        }
+    }
+
+    private void writeFile(Path file) {
+        try {
+            // Written next to the target and moved over it so scrapers never read half a file
+            Path temp = file.resolveSibling("metrics.prom.tmp");
+            Files.writeString(temp, source.get(), StandardCharsets.UTF_8);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            plugin.getLogger().warning("Couldn't write metrics file: " + e.getMessage());
+        }
+    }
+
+    public void stop() {
+        if (fileTask != null) {
+            fileTask.cancel();
+            fileTask = null;
+        }
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+    }
+}
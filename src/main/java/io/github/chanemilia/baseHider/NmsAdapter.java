@@ -0,0 +1,395 @@
+package io.github.chanemilia.baseHider;
+
+import io.github.retrooper.packetevents.util.SpigotConversionUtil;
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.data.BlockData;
+import org.bukkit.entity.Player;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.RecordComponent;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Direct access to chunk sections on Paper 1.21 (Mojang mapped), for scanning without going block by block
+ * through the Bukkit API. Every handle is resolved once into a static final so the JIT can treat it as a constant
+ * and inline it into the scan loops. Nothing is used until {@link #markVerified} has been called after the
+ * self test agreed with ChunkSnapshot.getBlockData, anything missing or disagreeing leaves the Bukkit API in charge
+ */
+final class NmsAdapter {
+    private static final MethodType OBJECT_TO_OBJECT = MethodType.methodType(Object.class, Object.class);
+
+    // Core, needed for anything at all
+    private static final MethodHandle SNAPSHOT_SECTIONS;      // CraftChunkSnapshot PalettedContainer<BlockState>[] field
+    private static final MethodHandle CONTAINER_GET;          // PalettedContainer.get(int, int, int)
+    private static final MethodHandle BLOCK_DATA_FROM_STATE;  // CraftBlockData.fromData(BlockState)
+
+    // Palette scanning, reads the packed storage directly instead of calling get 4096 times
+    private static final MethodHandle CONTAINER_DATA;         // PalettedContainer data record field
+    private static final MethodHandle DATA_PALETTE;
+    private static final MethodHandle DATA_STORAGE;
+    private static final MethodHandle PALETTE_VALUE_FOR;      // Palette.valueFor(int)
+    private static final MethodHandle PALETTE_SIZE;
+    private static final MethodHandle STORAGE_RAW;            // BitStorage.getRaw()
+    private static final MethodHandle STORAGE_BITS;
+
+    // Single section capture, copies one section out of the live chunk
+    private static final MethodHandle WORLD_HANDLE;           // CraftWorld.getHandle()
+    private static final MethodHandle LEVEL_GET_CHUNK;        // Level.getChunk(int, int)
+    private static final MethodHandle CHUNK_GET_SECTION;      // ChunkAccess.getSection(int)
+    private static final MethodHandle SECTION_GET_STATES;     // LevelChunkSection.getStates()
+    private static final MethodHandle CONTAINER_COPY;
+
+    // Column resend, sends one player a fresh chunk packet built from the live chunk
+    private static final MethodHandle PLAYER_HANDLE;          // CraftPlayer.getHandle()
+    private static final MethodHandle PLAYER_CONNECTION;      // ServerPlayer.connection
+    private static final MethodHandle CONNECTION_SEND;        // ServerCommonPacketListenerImpl.send(Packet)
+    private static final MethodHandle LEVEL_LIGHT_ENGINE;     // Level.getLightEngine()
+    private static final MethodHandle CHUNK_PACKET;           // new ClientboundLevelChunkWithLightPacket(chunk, light, null, null)
+
+    private static final String CORE_FAILURE;
+
+    private static volatile boolean tested;
+    private static volatile boolean verified;
+    private static volatile boolean captureDisabled;
+    private static volatile boolean resendDisabled;
+
+    // NMS block states are singletons, so each one only ever needs resolving once
+    private static final Map<Object, HiderSystem.ResolvedState> resolvedStates = new ConcurrentHashMap<>();
+
+    static {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        String failure = null;
+
+        MethodHandle snapshotSections = null, containerGet = null, fromState = null;
+        Class<?> containerClass = null;
+        try {
+            containerClass = Class.forName("net.minecraft.world.level.chunk.PalettedContainer");
+            Class<?> blockStateClass = Class.forName("net.minecraft.world.level.block.state.BlockState");
+            Class<?> snapshotClass = Class.forName("org.bukkit.craftbukkit.CraftChunkSnapshot");
+
+            // The block state array is the only PalettedContainer[] in the snapshot, biomes are PalettedContainerRO[]
+            for (Field field : snapshotClass.getDeclaredFields()) {
+                if (field.getType().isArray() && field.getType().getComponentType() == containerClass) {
+                    field.setAccessible(true);
+                    snapshotSections = lookup.unreflectGetter(field).asType(MethodType.methodType(Object[].class, Object.class));
+                    break;
+                }
+            }
+            if (snapshotSections == null) throw new NoSuchFieldException("CraftChunkSnapshot has no PalettedContainer[] field");
+
+            containerGet = lookup.unreflect(containerClass.getMethod("get", int.class, int.class, int.class))
+                    .asType(MethodType.methodType(Object.class, Object.class, int.class, int.class, int.class));
+
+            Class<?> craftBlockData = Class.forName("org.bukkit.craftbukkit.block.data.CraftBlockData");
+            fromState = lookup.unreflect(craftBlockData.getMethod("fromData", blockStateClass))
+                    .asType(MethodType.methodType(BlockData.class, Object.class));
+        } catch (Throwable t) {
+            failure = t.toString();
+            snapshotSections = null;
+        }
+
+        MethodHandle containerData = null, dataPalette = null, dataStorage = null;
+        MethodHandle valueFor = null, paletteSize = null, storageRaw = null, storageBits = null;
+        if (failure == null) {
+            try {
+                Class<?> paletteClass = Class.forName("net.minecraft.world.level.chunk.Palette");
+                Class<?> bitStorageClass = Class.forName("net.minecraft.util.BitStorage");
+
+                Field dataField = null;
+                for (Field field : containerClass.getDeclaredFields()) {
+                    if (field.getType().isRecord()) {
+                        dataField = field;
+                        break;
+                    }
+                }
+                if (dataField == null) throw new NoSuchFieldException("PalettedContainer has no data record");
+                dataField.setAccessible(true);
+                containerData = lookup.unreflectGetter(dataField).asType(OBJECT_TO_OBJECT);
+
+                // Matched by type rather than name so renamed record components still resolve
+                for (RecordComponent component : dataField.getType().getRecordComponents()) {
+                    Method accessor = component.getAccessor();
+                    accessor.setAccessible(true);
+                    if (paletteClass.isAssignableFrom(component.getType())) {
+                        dataPalette = lookup.unreflect(accessor).asType(OBJECT_TO_OBJECT);
+                    } else if (bitStorageClass.isAssignableFrom(component.getType())) {
+                        dataStorage = lookup.unreflect(accessor).asType(OBJECT_TO_OBJECT);
+                    }
+                }
+                if (dataPalette == null || dataStorage == null) throw new NoSuchMethodException("Data record has no palette or storage");
+
+                valueFor = lookup.unreflect(paletteClass.getMethod("valueFor", int.class))
+                        .asType(MethodType.methodType(Object.class, Object.class, int.class));
+                paletteSize = lookup.unreflect(paletteClass.getMethod("getSize"))
+                        .asType(MethodType.methodType(int.class, Object.class));
+                storageRaw = lookup.unreflect(bitStorageClass.getMethod("getRaw"))
+                        .asType(MethodType.methodType(long[].class, Object.class));
+                storageBits = lookup.unreflect(bitStorageClass.getMethod("getBits"))
+                        .asType(MethodType.methodType(int.class, Object.class));
+            } catch (Throwable t) {
+                containerData = null;
+            }
+        }
+
+        MethodHandle worldHandle = null, getChunk = null, getSection = null, getStates = null, copy = null;
+        if (failure == null) {
+            try {
+                worldHandle = lookup.unreflect(Class.forName("org.bukkit.craftbukkit.CraftWorld").getMethod("getHandle"))
+                        .asType(OBJECT_TO_OBJECT);
+                getChunk = lookup.unreflect(Class.forName("net.minecraft.world.level.Level").getMethod("getChunk", int.class, int.class))
+                        .asType(MethodType.methodType(Object.class, Object.class, int.class, int.class));
+                getSection = lookup.unreflect(Class.forName("net.minecraft.world.level.chunk.ChunkAccess").getMethod("getSection", int.class))
+                        .asType(MethodType.methodType(Object.class, Object.class, int.class));
+                getStates = lookup.unreflect(Class.forName("net.minecraft.world.level.chunk.LevelChunkSection").getMethod("getStates"))
+                        .asType(OBJECT_TO_OBJECT);
+                copy = lookup.unreflect(containerClass.getMethod("copy")).asType(OBJECT_TO_OBJECT);
+            } catch (Throwable t) {
+                worldHandle = null;
+            }
+        }
+
+        MethodHandle playerHandle = null, connection = null, send = null, lightEngine = null, chunkPacket = null;
+        if (worldHandle != null) {
+            try {
+                Class<?> serverPlayer = Class.forName("net.minecraft.server.level.ServerPlayer");
+                Class<?> packetClass = Class.forName("net.minecraft.network.protocol.Packet");
+                Class<?> levelChunk = Class.forName("net.minecraft.world.level.chunk.LevelChunk");
+
+                playerHandle = lookup.unreflect(Class.forName("org.bukkit.craftbukkit.entity.CraftPlayer").getMethod("getHandle"))
+                        .asType(OBJECT_TO_OBJECT);
+                Field connectionField = serverPlayer.getField("connection");
+                connection = lookup.unreflectGetter(connectionField).asType(OBJECT_TO_OBJECT);
+                send = lookup.unreflect(connectionField.getType().getMethod("send", packetClass))
+                        .asType(MethodType.methodType(void.class, Object.class, Object.class));
+                lightEngine = lookup.unreflect(Class.forName("net.minecraft.world.level.Level").getMethod("getLightEngine"))
+                        .asType(OBJECT_TO_OBJECT);
+
+                // Paper adds a trailing boolean for anti-xray, passed true like its own chunk sends
+                Class<?> packetType = Class.forName("net.minecraft.network.protocol.game.ClientboundLevelChunkWithLightPacket");
+                for (Constructor<?> constructor : packetType.getConstructors()) {
+                    Class<?>[] params = constructor.getParameterTypes();
+                    if (params.length < 4 || params[0] != levelChunk || params[2] != BitSet.class || params[3] != BitSet.class) continue;
+
+                    MethodHandle handle = lookup.unreflectConstructor(constructor);
+                    if (params.length == 5 && params[4] == boolean.class) {
+                        handle = MethodHandles.insertArguments(handle, 4, true);
+                    } else if (params.length != 4) {
+                        continue;
+                    }
+                    chunkPacket = handle.asType(MethodType.methodType(Object.class, Object.class, Object.class, BitSet.class, BitSet.class));
+                    break;
+                }
+                if (chunkPacket == null) throw new NoSuchMethodException("No usable ClientboundLevelChunkWithLightPacket constructor");
+            } catch (Throwable t) {
+                playerHandle = null;
+            }
+        }
+
+        SNAPSHOT_SECTIONS = snapshotSections;
+        CONTAINER_GET = containerGet;
+        BLOCK_DATA_FROM_STATE = fromState;
+        CONTAINER_DATA = containerData;
+        DATA_PALETTE = dataPalette;
+        DATA_STORAGE = dataStorage;
+        PALETTE_VALUE_FOR = valueFor;
+        PALETTE_SIZE = paletteSize;
+        STORAGE_RAW = storageRaw;
+        STORAGE_BITS = storageBits;
+        WORLD_HANDLE = worldHandle;
+        LEVEL_GET_CHUNK = getChunk;
+        CHUNK_GET_SECTION = getSection;
+        SECTION_GET_STATES = getStates;
+        CONTAINER_COPY = copy;
+        PLAYER_HANDLE = playerHandle;
+        PLAYER_CONNECTION = connection;
+        CONNECTION_SEND = send;
+        LEVEL_LIGHT_ENGINE = lightEngine;
+        CHUNK_PACKET = chunkPacket;
+        CORE_FAILURE = failure;
+    }
+
+    private NmsAdapter() {
+    }
+
+    /**
+     * Why the adapter can't be used at all on this server, or null if the handles resolved
+     */
+    static String failure() {
+        return CORE_FAILURE;
+    }
+
+    static boolean paletteScanResolved() {
+        return CONTAINER_DATA != null;
+    }
+
+    static boolean sectionCaptureResolved() {
+        return WORLD_HANDLE != null;
+    }
+
+    static boolean isTested() {
+        return tested;
+    }
+
+    static void markVerified(boolean passed) {
+        verified = passed && CORE_FAILURE == null;
+        tested = true;
+    }
+
+    /**
+     * Handles resolved and the self test agreed with the Bukkit API
+     */
+    static boolean isReady() {
+        return verified;
+    }
+
+    static boolean canCaptureSections() {
+        return verified && WORLD_HANDLE != null && !captureDisabled;
+    }
+
+    static void disableSectionCapture() {
+        captureDisabled = true;
+    }
+
+    /**
+     * Doesn't read any blocks itself, the packet goes out through the same listener as the server's own chunk sends
+     */
+    static boolean canResendColumns() {
+        return PLAYER_HANDLE != null && !resendDisabled;
+    }
+
+    static void disableColumnResend() {
+        resendDisabled = true;
+    }
+
+    /**
+     * Sends the player the column as it is now, like the server does when it first comes into view. Main thread only
+     */
+    static void resendColumn(Player player, World world, int cx, int cz) throws Exception {
+        try {
+            Object level = (Object) WORLD_HANDLE.invokeExact((Object) world);
+            Object chunk = (Object) LEVEL_GET_CHUNK.invokeExact(level, cx, cz);
+            Object light = (Object) LEVEL_LIGHT_ENGINE.invokeExact(level);
+            Object packet = (Object) CHUNK_PACKET.invokeExact(chunk, light, (BitSet) null, (BitSet) null);
+
+            Object handle = (Object) PLAYER_HANDLE.invokeExact((Object) player);
+            Object connection = (Object) PLAYER_CONNECTION.invokeExact(handle);
+            CONNECTION_SEND.invokeExact(connection, packet);
+        } catch (Exception | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    /**
+     * The block state container of a section in a snapshot, or null if there isn't one
+     */
+    static Object snapshotSection(ChunkSnapshot snapshot, int sectionIndex) throws Exception {
+        try {
+            Object[] sections = (Object[]) SNAPSHOT_SECTIONS.invokeExact((Object) snapshot);
+            if (sections == null || sectionIndex < 0 || sectionIndex >= sections.length) return null;
+            return sections[sectionIndex];
+        } catch (Exception | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    /**
+     * Copies one section's block states out of the live chunk. Main thread only
+     */
+    static Object captureSection(World world, int cx, int cz, int sectionIndex) throws Exception {
+        try {
+            Object level = (Object) WORLD_HANDLE.invokeExact((Object) world);
+            Object chunk = (Object) LEVEL_GET_CHUNK.invokeExact(level, cx, cz);
+            Object section = (Object) CHUNK_GET_SECTION.invokeExact(chunk, sectionIndex);
+            Object states = (Object) SECTION_GET_STATES.invokeExact(section);
+            return (Object) CONTAINER_COPY.invokeExact(states);
+        } catch (Exception | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    /**
+     * Every block in the container that isn't the replacement block, or null if there are none
+     */
+    static HiderSystem.SimpleBlockInfo[] scan(Object container, Material replacementMat) throws Exception {
+        if (container == null) return null;
+        try {
+            return CONTAINER_DATA != null ? scanPalette(container, replacementMat) : scanPerBlock(container, replacementMat);
+        } catch (Exception | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    private static HiderSystem.SimpleBlockInfo[] scanPalette(Object container, Material replacementMat) throws Throwable {
+        Object data = (Object) CONTAINER_DATA.invokeExact(container);
+        Object palette = (Object) DATA_PALETTE.invokeExact(data);
+        Object storage = (Object) DATA_STORAGE.invokeExact(data);
+
+        int paletteSize = (int) PALETTE_SIZE.invokeExact(palette);
+        int bits = (int) STORAGE_BITS.invokeExact(storage);
+        long[] raw = (long[]) STORAGE_RAW.invokeExact(storage);
+
+        return HiderSystem.unpackPalette(raw, bits, paletteSize, replacementMat, index -> resolvePaletteEntry(palette, index));
+    }
+
+    private static HiderSystem.SimpleBlockInfo[] scanPerBlock(Object container, Material replacementMat) throws Throwable {
+        HiderSystem.SimpleBlockInfo[] tempArray = new HiderSystem.SimpleBlockInfo[4096];
+        int count = 0;
+
+        for (int y = 0; y < 16; y++) {
+            for (int z = 0; z < 16; z++) {
+                for (int x = 0; x < 16; x++) {
+                    Object blockState = (Object) CONTAINER_GET.invokeExact(container, x, y, z);
+                    if (blockState == null) continue;
+
+                    HiderSystem.ResolvedState state = resolve(blockState);
+                    if (state.material() != replacementMat) {
+                        tempArray[count++] = new HiderSystem.SimpleBlockInfo(state.globalId(), x, y, z);
+                    }
+                }
+            }
+        }
+
+        if (count == 0) return null;
+        return Arrays.copyOf(tempArray, count);
+    }
+
+    private static HiderSystem.ResolvedState resolvePaletteEntry(Object palette, int index) throws Exception {
+        try {
+            Object blockState = (Object) PALETTE_VALUE_FOR.invokeExact(palette, index);
+            return blockState == null ? null : resolve(blockState);
+        } catch (Exception | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    private static HiderSystem.ResolvedState resolve(Object blockState) throws Throwable {
+        HiderSystem.ResolvedState state = resolvedStates.get(blockState);
+        if (state == null) {
+            BlockData blockData = (BlockData) BLOCK_DATA_FROM_STATE.invokeExact(blockState);
+            int globalId = SpigotConversionUtil.fromBukkitBlockData(blockData).getGlobalId();
+            state = new HiderSystem.ResolvedState(globalId, blockData.getMaterial());
+            resolvedStates.put(blockState, state);
+        }
+        return state;
+    }
+}
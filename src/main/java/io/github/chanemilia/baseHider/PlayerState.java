@@ -0,0 +1,332 @@
+package io.github.chanemilia.baseHider;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Everything HiderSystem tracks for one player, keyed by section key or entity id.
+ * Touched from the netty, async and main threads so every access is synchronized
+ */
+public class PlayerState {
+    // Plenty for a long session of exploring, a player's saved file stays under a few MB
+    private static final int MAX_REVEALED_PER_WORLD = 65536;
+
+    public final UUID uuid;
+
+    private final LongHashSet hiddenSections = new LongHashSet(256);
+    // Sections with an update on its way, mapped to the decision's version shifted left once, with the low bit
+    // holding whether the client had the section hidden before it. A newer decision replaces the entry
+    private final LongIntHashMap pendingSections = new LongIntHashMap();
+    private int lastVersion;
+    private final LongHashSet hiddenEntities = new LongHashSet();
+    private final IntObjectHashMap<TrackedEntity> trackedEntities = new IntObjectHashMap<>();
+
+    // Columns the client has loaded, everything else here is dropped with its column or on a dimension change
+    private final LongHashSet loadedColumns = new LongHashSet(1024);
+    // Columns being resent to reveal them, their chunk packet takes the hide mask from here instead of distance
+    private final LongHashSet resendingColumns = new LongHashSet();
+
+    // Sections the player has been shown by world, only kept when persist-state is on
+    private final Map<UUID, LongHashSet> revealedSections = new HashMap<>();
+
+    // Where the last rescan was evaluated from, so the next one only has to look at what can have changed
+    private UUID sweepWorld;
+    private WorldConfig sweepConfig;
+    private double sweepX, sweepY, sweepZ;
+    private int sweepViewDist;
+    private boolean sweepGlobalReveal;
+    private boolean fullSweepRequested = true;
+
+    // Where entity visibility was last worked out from, null to look at every bucket in range next time
+    private EntitySweep entitySweep;
+
+    public PlayerState(UUID uuid) {
+        this.uuid = uuid;
+    }
+
+    public synchronized boolean isHidden(long sectionKey) {
+        return hiddenSections.contains(sectionKey);
+    }
+
+    public synchronized void setHidden(long sectionKey, boolean hidden) {
+        if (hidden) {
+            hiddenSections.add(sectionKey);
+        } else {
+            hiddenSections.remove(sectionKey);
+        }
+    }
+
+    /**
+     * Whether the client's copy of the section is the replacement, which differs from {@link #isHidden} while a
+     * decision is still on its way
+     */
+    public synchronized boolean isClientHidden(long sectionKey) {
+        int entry = pendingSections.get(sectionKey, 0);
+        return entry != 0 ? (entry & 1) != 0 : hiddenSections.contains(sectionKey);
+    }
+
+    public synchronized boolean isPending(long sectionKey) {
+        return pendingSections.containsKey(sectionKey);
+    }
+
+    /**
+     * Decides the section should now be hidden or shown, superseding whatever is already on its way for it.
+     * Returns the version the update carrying this decision has to match to be sent, or 0 if there's nothing to send
+     * because it takes back a decision the client never got
+     */
+    public synchronized int decide(long sectionKey, boolean hidden) {
+        boolean clientHidden = isClientHidden(sectionKey);
+        setHidden(sectionKey, hidden);
+
+        if (clientHidden == hidden) {
+            pendingSections.remove(sectionKey);
+            return 0;
+        }
+        return supersede(sectionKey, clientHidden);
+    }
+
+    /**
+     * Sends the section again as it's meant to be without changing the decision, like after the replacement block
+     * changed. Returns the new version
+     */
+    public synchronized int redo(long sectionKey) {
+        return supersede(sectionKey, isClientHidden(sectionKey));
+    }
+
+    private int supersede(long sectionKey, boolean clientHidden) {
+        // Never 0, and small enough to shift, wrapping is fine since only the newest one per section is ever kept
+        lastVersion = lastVersion >= Integer.MAX_VALUE >> 1 ? 1 : lastVersion + 1;
+        pendingSections.put(sectionKey, (lastVersion << 1) | (clientHidden ? 1 : 0));
+        return lastVersion;
+    }
+
+    /**
+     * Whether an update with this version is still the latest decision for its section, checked before any work
+     */
+    public synchronized boolean isCurrent(long sectionKey, int version) {
+        return version != 0 && pendingSections.get(sectionKey, 0) >>> 1 == version;
+    }
+
+    /**
+     * Clears the pending decision if this version is still the latest, returning true if it was.
+     * Used both when the update goes out and when it turns out there's nothing to send
+     */
+    public synchronized boolean complete(long sectionKey, int version) {
+        if (!isCurrent(sectionKey, version)) return false;
+        pendingSections.remove(sectionKey);
+        return true;
+    }
+
+    /**
+     * Takes back this version's decision if it's still the latest, when its update couldn't be built. The section goes
+     * back to what the client actually has, and the next sweep is a full one since a delta would skip it
+     */
+    public synchronized void revert(long sectionKey, int version) {
+        if (!isCurrent(sectionKey, version)) return;
+        int entry = pendingSections.get(sectionKey, 0);
+        pendingSections.remove(sectionKey);
+        setHidden(sectionKey, (entry & 1) != 0);
+        fullSweepRequested = true;
+    }
+
+    /**
+     * Drops whatever was on its way for the section, the client has just been sent exactly what it's meant to have
+     */
+    public synchronized void settle(long sectionKey) {
+        pendingSections.remove(sectionKey);
+    }
+
+    public synchronized boolean wasRevealed(UUID world, long sectionKey) {
+        LongHashSet revealed = revealedSections.get(world);
+        return revealed != null && revealed.contains(sectionKey);
+    }
+
+    public synchronized void setRevealed(UUID world, long sectionKey, boolean revealed) {
+        LongHashSet keys = revealedSections.get(world);
+        if (!revealed) {
+            if (keys != null) keys.remove(sectionKey);
+            return;
+        }
+
+        if (keys == null) {
+            keys = new LongHashSet(256);
+            revealedSections.put(world, keys);
+        }
+        if (keys.size() < MAX_REVEALED_PER_WORLD) keys.add(sectionKey);
+    }
+
+    /**
+     * Copy of the revealed sections for saving, worlds with none are left out
+     */
+    public synchronized Map<UUID, long[]> revealedSnapshot() {
+        Map<UUID, long[]> snapshot = new HashMap<>();
+        revealedSections.forEach((world, keys) -> {
+            if (keys.isEmpty()) return;
+            long[] copy = new long[keys.size()];
+            int[] i = {0};
+            keys.forEach(key -> copy[i[0]++] = key);
+            snapshot.put(world, copy);
+        });
+        return snapshot;
+    }
+
+    public synchronized void restoreRevealed(Map<UUID, long[]> saved) {
+        saved.forEach((world, keys) -> {
+            for (long key : keys) setRevealed(world, key, true);
+        });
+    }
+
+    public synchronized boolean isEntityHidden(int entityId) {
+        return hiddenEntities.contains(entityId);
+    }
+
+    public synchronized void setEntityHidden(int entityId, boolean hidden) {
+        if (hidden) {
+            hiddenEntities.add(entityId);
+        } else {
+            hiddenEntities.remove(entityId);
+        }
+    }
+
+    public synchronized TrackedEntity trackedEntity(int entityId) {
+        return trackedEntities.get(entityId);
+    }
+
+    public synchronized void trackEntity(TrackedEntity entity) {
+        trackedEntities.put(entity.entityId, entity);
+    }
+
+    /**
+     * Forgets an entity the client no longer has, hidden or not
+     */
+    public synchronized void untrackEntity(int entityId) {
+        trackedEntities.remove(entityId);
+        hiddenEntities.remove(entityId);
+    }
+
+    public synchronized boolean isColumnLoaded(int cx, int cz) {
+        return loadedColumns.contains(columnKey(cx, cz));
+    }
+
+    public synchronized void loadColumn(int cx, int cz) {
+        loadedColumns.add(columnKey(cx, cz));
+    }
+
+    /**
+     * Forgets a column the client dropped, along with its sections and the entities it had in it
+     */
+    public synchronized void unloadColumn(int cx, int cz, int minSection, int maxSection) {
+        loadedColumns.remove(columnKey(cx, cz));
+        resendingColumns.remove(columnKey(cx, cz));
+
+        for (int sy = minSection; sy <= maxSection; sy++) {
+            long sectionKey = HiderSystem.getSectionKey(cx, cz, sy);
+            hiddenSections.remove(sectionKey);
+            pendingSections.remove(sectionKey);
+        }
+
+        List<TrackedEntity> gone = new ArrayList<>();
+        trackedEntities.forEachValue(entity -> {
+            if (entity.isInColumn(cx, cz)) gone.add(entity);
+        });
+        for (TrackedEntity entity : gone) untrackEntity(entity.entityId);
+    }
+
+    /**
+     * The client starts over with an empty world on login and every respawn or dimension change
+     */
+    public synchronized void resetClientWorld() {
+        loadedColumns.clear();
+        resendingColumns.clear();
+        hiddenSections.clear();
+        pendingSections.clear();
+        hiddenEntities.clear();
+        trackedEntities.clear();
+        fullSweepRequested = true;
+        entitySweep = null;
+    }
+
+    public synchronized void expectResend(int cx, int cz) {
+        resendingColumns.add(columnKey(cx, cz));
+    }
+
+    /**
+     * Whether this column's chunk packet is one of our resends, only true once per resend
+     */
+    public synchronized boolean takeResend(int cx, int cz) {
+        return resendingColumns.remove(columnKey(cx, cz));
+    }
+
+    public synchronized int loadedColumnCount() {
+        return loadedColumns.size();
+    }
+
+    private static long columnKey(int cx, int cz) {
+        return ((long) cx << 32) | (cz & 0xFFFFFFFFL);
+    }
+
+    public synchronized long[] hiddenSectionKeys() {
+        long[] keys = new long[hiddenSections.size()];
+        int[] i = {0};
+        hiddenSections.forEach(key -> keys[i[0]++] = key);
+        return keys;
+    }
+
+    public synchronized long[] hiddenEntityIds() {
+        long[] ids = new long[hiddenEntities.size()];
+        int[] i = {0};
+        hiddenEntities.forEach(id -> ids[i[0]++] = id);
+        return ids;
+    }
+
+    /**
+     * Records the new sweep origin and returns the previous one,
+     * or null if anything other than the player's position changed and a full sweep is needed
+     */
+    public synchronized SweepOrigin startSweep(UUID world, WorldConfig config, double x, double y, double z,
+                                               int viewDist, boolean globalReveal) {
+        boolean full = fullSweepRequested || !world.equals(sweepWorld) || config != sweepConfig ||
+                viewDist != sweepViewDist || globalReveal != sweepGlobalReveal;
+
+        SweepOrigin previous = full ? null : new SweepOrigin(sweepX, sweepY, sweepZ);
+
+        sweepWorld = world;
+        sweepConfig = config;
+        sweepX = x;
+        sweepY = y;
+        sweepZ = z;
+        sweepViewDist = viewDist;
+        sweepGlobalReveal = globalReveal;
+        fullSweepRequested = false;
+
+        return previous;
+    }
+
+    public synchronized void requestFullSweep() {
+        fullSweepRequested = true;
+        entitySweep = null;
+    }
+
+    /**
+     * Records where entity visibility is being worked out from and returns the previous one, or null if there's none
+     */
+    public synchronized EntitySweep startEntitySweep(EntitySweep next) {
+        EntitySweep previous = entitySweep;
+        entitySweep = next;
+        return previous;
+    }
+
+    public synchronized int hiddenSectionCount() {
+        return hiddenSections.size();
+    }
+
+    public record SweepOrigin(double x, double y, double z) {
+    }
+
+    public record EntitySweep(UUID world, WorldConfig config, double x, double y, double z, boolean hidingActive,
+                              int centerX, int centerZ, int range, long generation) {
+    }
+}
@@ -0,0 +1,143 @@
+package io.github.chanemilia.baseHider;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * BaseHider's own pool for async work, a fixed number of virtual threads so bursts can't pile up on the shared
+ * Bukkit async pool. Rescans are coalesced per player: at most one runs at a time with one queued behind it,
+ * and a newer request replaces the queued one since a rescan reads the player's position when it starts
+ */
+public class RescanExecutor {
+    private final ThreadPoolExecutor executor;
+    private final Logger logger;
+    private final Map<UUID, Slot> slots = new ConcurrentHashMap<>();
+    private volatile boolean shutdown;
+
+    public RescanExecutor(int threads, Logger logger) {
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                Thread.ofVirtual().name("BaseHider-worker-", 0).factory());
+        this.logger = logger;
+    }
+
+    /**
+     * Runs the rescan after whatever is running for this player, replacing anything still waiting
+     */
+    public void submit(UUID player, Runnable rescan) {
+        if (shutdown) return;
+
+        Slot slot = slots.computeIfAbsent(player, k -> new Slot());
+        synchronized (slot) {
+            slot.queued = rescan;
+            if (slot.running) return;
+            slot.running = true;
+        }
+        schedule(slot);
+    }
+
+    /**
+     * Runs uncoalesced work, like section scans
+     */
+    public void execute(Runnable task) {
+        if (shutdown) return;
+        try {
+            executor.execute(() -> run(task));
+        } catch (RejectedExecutionException ignored) {
+            // Shutting down
+        }
+    }
+
+    private void schedule(Slot slot) {
+        try {
+            executor.execute(() -> drain(slot));
+        } catch (RejectedExecutionException e) {
+            synchronized (slot) {
+                slot.running = false;
+                slot.queued = null;
+            }
+        }
+    }
+
+    private void drain(Slot slot) {
+        Runnable rescan;
+        synchronized (slot) {
+            rescan = slot.queued;
+            slot.queued = null;
+            if (rescan == null || shutdown) {
+                slot.running = false;
+                return;
+            }
+        }
+
+        run(rescan);
+
+        // Back of the line for anything queued meanwhile, so one busy player can't hold a thread
+        synchronized (slot) {
+            if (slot.queued == null || shutdown) {
+                slot.running = false;
+                return;
+            }
+        }
+        schedule(slot);
+    }
+
+    private void run(Runnable task) {
+        try {
+            task.run();
+        } catch (Throwable t) {
+            logger.log(Level.WARNING, "Async task failed", t);
+        }
+    }
+
+    /**
+     * Changes the number of threads, queued work is kept
+     */
+    public void resize(int threads) {
+        if (threads > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(threads);
+            executor.setCorePoolSize(threads);
+        } else {
+            executor.setCorePoolSize(threads);
+            executor.setMaximumPoolSize(threads);
+        }
+    }
+
+    public void remove(UUID player) {
+        Slot slot = slots.remove(player);
+        if (slot != null) {
+            synchronized (slot) {
+                slot.queued = null;
+            }
+        }
+    }
+
+    /**
+     * Stops taking work, drops anything queued and waits briefly for running work to finish
+     */
+    public void shutdown() {
+        shutdown = true;
+        slots.clear();
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(2, TimeUnit.SECONDS)) {
+                logger.warning("Async work still running after 2s, interrupting it");
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class Slot {
+        Runnable queued;
+        boolean running;
+    }
+}
@@ -0,0 +1,243 @@
+package io.github.chanemilia.baseHider;
+
+import com.github.retrooper.packetevents.wrapper.play.server.WrapperPlayServerMultiBlockChange.EncodedBlock;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.IntPredicate;
+
+/**
+ * Shared LRU cache of scanned real section contents, already encoded for sending,
+ * so players revealing the same area reuse one scan.
+ * Bounded by the total number of cached blocks rather than entries since a section can hold 0 to 4096 of them.
+ * Entries are kept in y, z, x order so block changes can be looked up without expanding the section
+ */
+public class SectionScanCache {
+    private static final int MAX_TRACKED_INVALIDATIONS = 8192;
+
+    private long maxBlocks;
+    private long cachedBlocks;
+
+    private final LinkedHashMap<SectionId, EncodedBlock[]> entries = new LinkedHashMap<>(256, 0.75f, true);
+
+    // Sections invalidated recently, so a scan that was snapshotted before the change can't be cached afterwards
+    private final LinkedHashMap<SectionId, Long> invalidations = new LinkedHashMap<>();
+    private long version;
+    private long evictedInvalidationVersion;
+
+    public SectionScanCache(long maxBlocks) {
+        this.maxBlocks = maxBlocks;
+    }
+
+    public synchronized void setMaxBlocks(long maxBlocks) {
+        this.maxBlocks = maxBlocks;
+        if (maxBlocks <= 0) {
+            entries.clear();
+            cachedBlocks = 0;
+            return;
+        }
+
+        Iterator<EncodedBlock[]> it = entries.values().iterator();
+        while (cachedBlocks > maxBlocks && it.hasNext()) {
+            cachedBlocks -= weight(it.next());
+            it.remove();
+        }
+    }
+
+    /**
+     * Current version, take this before snapshotting a section and pass it to {@link #put}
+     */
+    public synchronized long version() {
+        return version;
+    }
+
+    /**
+     * Returns the cached scan, an empty array if the section has nothing to reveal, or null if not cached
+     */
+    public synchronized EncodedBlock[] get(UUID world, long sectionKey) {
+        if (maxBlocks <= 0) return null;
+        return entries.get(new SectionId(world, sectionKey));
+    }
+
+    public synchronized void put(UUID world, long sectionKey, EncodedBlock[] blocks, long snapshotVersion) {
+        if (maxBlocks <= 0) return;
+
+        SectionId id = new SectionId(world, sectionKey);
+        if (snapshotVersion < evictedInvalidationVersion) return;
+
+        Long invalidatedAt = invalidations.get(id);
+        if (invalidatedAt != null && invalidatedAt > snapshotVersion) return;
+
+        EncodedBlock[] stored = blocks != null ? inOrder(blocks) : new EncodedBlock[0];
+        EncodedBlock[] previous = entries.put(id, stored);
+        if (previous != null) cachedBlocks -= weight(previous);
+        cachedBlocks += weight(stored);
+
+        Iterator<EncodedBlock[]> it = entries.values().iterator();
+        while (cachedBlocks > maxBlocks && it.hasNext()) {
+            cachedBlocks -= weight(it.next());
+            it.remove();
+        }
+    }
+
+    public synchronized void invalidate(UUID world, long sectionKey) {
+        SectionId id = new SectionId(world, sectionKey);
+        EncodedBlock[] removed = entries.remove(id);
+        if (removed != null) cachedBlocks -= weight(removed);
+
+        recordInvalidation(id);
+    }
+
+    /**
+     * Whether the section is cached and any of the changes would alter it, without allocating anything.
+     * Changes to a block isReplacement matches count as dropping the position, the same as a scan would leave it out
+     */
+    public synchronized boolean differs(UUID world, long sectionKey, EncodedBlock[] changes, IntPredicate isReplacement) {
+        if (maxBlocks <= 0) return false;
+
+        EncodedBlock[] cached = entries.get(new SectionId(world, sectionKey));
+        return cached != null && differs(cached, changes, isReplacement);
+    }
+
+    private static boolean differs(EncodedBlock[] cached, EncodedBlock[] changes, IntPredicate isReplacement) {
+        for (EncodedBlock change : changes) {
+            int pos = find(cached, index(change));
+            boolean removed = isReplacement.test(change.getBlockId());
+            if (removed ? pos >= 0 : pos < 0 || cached[pos].getBlockId() != change.getBlockId()) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Applies block changes confirmed against the world to a section's cached scan so it stays usable.
+     * Changes to a block isReplacement matches drop the position. Does nothing if the section isn't cached
+     * or the changes are already in it, and the last change to a block wins
+     */
+    public synchronized void fold(UUID world, long sectionKey, EncodedBlock[] changes, IntPredicate isReplacement) {
+        if (maxBlocks <= 0) return;
+
+        SectionId id = new SectionId(world, sectionKey);
+        EncodedBlock[] cached = entries.get(id);
+        if (cached == null || !differs(cached, changes, isReplacement)) return;
+
+        // Changes by position, with their order in the packet below so the last change to a block wins
+        long[] order = new long[changes.length];
+        for (int i = 0; i < changes.length; i++) order[i] = ((long) index(changes[i]) << 32) | i;
+        Arrays.sort(order);
+
+        EncodedBlock[] merged = new EncodedBlock[cached.length + changes.length];
+        int count = 0;
+        int next = 0;
+        for (int o = 0; o < order.length; o++) {
+            int index = (int) (order[o] >>> 32);
+            if (o + 1 < order.length && (int) (order[o + 1] >>> 32) == index) continue;
+
+            while (next < cached.length && index(cached[next]) < index) merged[count++] = cached[next++];
+            if (next < cached.length && index(cached[next]) == index) next++;
+
+            EncodedBlock change = changes[(int) order[o]];
+            if (!isReplacement.test(change.getBlockId())) {
+                merged[count++] = new EncodedBlock(change.getBlockId(), change.getX() & 15, change.getY() & 15, change.getZ() & 15);
+            }
+        }
+        while (next < cached.length) merged[count++] = cached[next++];
+
+        EncodedBlock[] folded = Arrays.copyOf(merged, count);
+        cachedBlocks += weight(folded) - weight(cached);
+        entries.put(id, folded);
+        // Scans snapshotted before this change would undo it
+        recordInvalidation(id);
+    }
+
+    // Binary search on position, the entry's slot or a negative number if it has nothing there
+    private static int find(EncodedBlock[] blocks, int index) {
+        int low = 0;
+        int high = blocks.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int current = index(blocks[mid]);
+            if (current < index) {
+                low = mid + 1;
+            } else if (current > index) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    // Scans come out in either x, z or z, x order within a layer, only the ones out of order are copied and sorted
+    private static EncodedBlock[] inOrder(EncodedBlock[] blocks) {
+        for (int i = 1; i < blocks.length; i++) {
+            if (index(blocks[i - 1]) > index(blocks[i])) {
+                EncodedBlock[] sorted = blocks.clone();
+                Arrays.sort(sorted, Comparator.comparingInt(SectionScanCache::index));
+                return sorted;
+            }
+        }
+        return blocks;
+    }
+
+    private void recordInvalidation(SectionId id) {
+        version++;
+        invalidations.remove(id);
+        invalidations.put(id, version);
+
+        if (invalidations.size() > MAX_TRACKED_INVALIDATIONS) {
+            Iterator<Map.Entry<SectionId, Long>> it = invalidations.entrySet().iterator();
+            evictedInvalidationVersion = it.next().getValue();
+            it.remove();
+        }
+    }
+
+    public synchronized void invalidateWorld(UUID world) {
+        entries.keySet().removeIf(id -> id.world.equals(world));
+        cachedBlocks = 0;
+        for (EncodedBlock[] blocks : entries.values()) cachedBlocks += weight(blocks);
+        // Anything in flight for this world is stale too
+        version++;
+        evictedInvalidationVersion = version;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        invalidations.clear();
+        cachedBlocks = 0;
+        version++;
+        evictedInvalidationVersion = version;
+    }
+
+    /**
+     * Every cached scan, least recently used first so putting them back in order keeps the eviction order
+     */
+    public synchronized List<Entry> entries() {
+        List<Entry> result = new ArrayList<>(entries.size());
+        entries.forEach((id, blocks) -> result.add(new Entry(id.world, id.sectionKey, blocks)));
+        return result;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private static int index(EncodedBlock block) {
+        return ((block.getY() & 15) << 8) | ((block.getZ() & 15) << 4) | (block.getX() & 15);
+    }
+
+    private static int weight(EncodedBlock[] blocks) {
+        return Math.max(1, blocks.length);
+    }
+
+    public record Entry(UUID world, long sectionKey, EncodedBlock[] blocks) {
+    }
+
+    private record SectionId(UUID world, long sectionKey) {
+    }
+}
@@ -0,0 +1,221 @@
+package io.github.chanemilia.baseHider;
+
+import com.github.retrooper.packetevents.wrapper.play.server.WrapperPlayServerMultiBlockChange.EncodedBlock;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Optional on-disk copy of which sections each player has been shown and of the scan cache,
+ * so returning players and restarts don't start over from a fully hidden world.
+ * Small gzipped binary files under the data folder, each written next to its target and moved over it
+ */
+public class StateStore {
+    private static final int PLAYER_FORMAT = 1;
+    private static final int CACHE_FORMAT = 1;
+
+    private final Path playerDir;
+    private final Path cacheFile;
+    private final Logger logger;
+
+    // Saves handed over but not written yet, so a quick rejoin reads what was just saved rather than the old file
+    private final Map<UUID, Map<UUID, long[]>> unsaved = new ConcurrentHashMap<>();
+
+    public StateStore(Path dataFolder, Logger logger) {
+        this.playerDir = dataFolder.resolve("state").resolve("players");
+        this.cacheFile = dataFolder.resolve("state").resolve("scan-cache.bin");
+        this.logger = logger;
+    }
+
+    /**
+     * Revealed section keys by world, empty if there's nothing saved or the file can't be read
+     */
+    public Map<UUID, long[]> loadPlayer(UUID player) {
+        Map<UUID, long[]> pending = unsaved.get(player);
+        if (pending != null) return pending;
+
+        Path file = playerDir.resolve(player + ".bin");
+        if (!Files.exists(file)) return Map.of();
+
+        try (DataInputStream in = open(file)) {
+            if (in.readInt() != PLAYER_FORMAT) return Map.of();
+
+            Map<UUID, long[]> revealed = new HashMap<>();
+            int worlds = in.readInt();
+            for (int w = 0; w < worlds; w++) {
+                UUID world = new UUID(in.readLong(), in.readLong());
+                long[] keys = new long[in.readInt()];
+                for (int i = 0; i < keys.length; i++) keys[i] = in.readLong();
+                revealed.put(world, keys);
+            }
+            return revealed;
+        } catch (IOException e) {
+            logger.warning("Couldn't read saved state for " + player + ": " + e.getMessage());
+            return Map.of();
+        }
+    }
+
+    /**
+     * Takes a player's revealed sections to be written by {@link #write}, which can run on any thread
+     */
+    public void stage(UUID player, Map<UUID, long[]> revealed) {
+        unsaved.put(player, revealed);
+    }
+
+    /**
+     * Revealed sections handed over but not written yet, or null if there are none
+     */
+    public Map<UUID, long[]> staged(UUID player) {
+        return unsaved.get(player);
+    }
+
+    public synchronized void write(UUID player) {
+        Map<UUID, long[]> revealed = unsaved.get(player);
+        if (revealed == null) return;
+
+        Path file = playerDir.resolve(player + ".bin");
+        try {
+            if (revealed.isEmpty()) {
+                Files.deleteIfExists(file);
+            } else {
+                writeAtomically(file, out -> {
+                    out.writeInt(PLAYER_FORMAT);
+                    out.writeInt(revealed.size());
+                    for (Map.Entry<UUID, long[]> entry : revealed.entrySet()) {
+                        writeUuid(out, entry.getKey());
+                        out.writeInt(entry.getValue().length);
+                        for (long key : entry.getValue()) out.writeLong(key);
+                    }
+                });
+            }
+        } catch (IOException e) {
+            logger.warning("Couldn't save state for " + player + ": " + e.getMessage());
+        }
+        unsaved.remove(player, revealed);
+    }
+
+    /**
+     * Writes everything staged, for shutdown when the async pool has already stopped
+     */
+    public void writeAll() {
+        for (UUID player : List.copyOf(unsaved.keySet())) write(player);
+    }
+
+    /**
+     * Saves cached scans with each world's game time. It only advances while the world ticks, unlike the day time,
+     * so it's only unchanged on the next start if nothing ran the world in between. Entries go least recently used
+     * first so loading them back keeps the order
+     */
+    public synchronized void saveScanCache(List<SectionScanCache.Entry> entries, Map<UUID, Long> worldTimes) {
+        Map<UUID, List<SectionScanCache.Entry>> byWorld = new HashMap<>();
+        for (SectionScanCache.Entry entry : entries) {
+            if (worldTimes.containsKey(entry.world())) {
+                byWorld.computeIfAbsent(entry.world(), k -> new ArrayList<>()).add(entry);
+            }
+        }
+
+        try {
+            if (byWorld.isEmpty()) {
+                Files.deleteIfExists(cacheFile);
+                return;
+            }
+            writeAtomically(cacheFile, out -> {
+                out.writeInt(CACHE_FORMAT);
+                out.writeInt(byWorld.size());
+                for (Map.Entry<UUID, List<SectionScanCache.Entry>> world : byWorld.entrySet()) {
+                    writeUuid(out, world.getKey());
+                    out.writeLong(worldTimes.get(world.getKey()));
+                    out.writeInt(world.getValue().size());
+                    for (SectionScanCache.Entry entry : world.getValue()) {
+                        out.writeLong(entry.sectionKey());
+                        out.writeInt(entry.blocks().length);
+                        for (EncodedBlock block : entry.blocks()) {
+                            out.writeInt((block.getBlockId() << 12) | ((block.getY() & 15) << 8) |
+                                    ((block.getZ() & 15) << 4) | (block.getX() & 15));
+                        }
+                    }
+                }
+            });
+        } catch (IOException e) {
+            logger.warning("Couldn't save the scan cache: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Puts saved scans back into the cache, skipping worlds that ticked or changed since they were saved.
+     * Returns the number of sections loaded
+     */
+    public synchronized int loadScanCache(SectionScanCache cache, Map<UUID, Long> worldTimes) {
+        if (!Files.exists(cacheFile)) return 0;
+
+        // Taken before reading so anything invalidated meanwhile isn't overwritten with the saved scan
+        long version = cache.version();
+        int loaded = 0;
+
+        try (DataInputStream in = open(cacheFile)) {
+            if (in.readInt() != CACHE_FORMAT) return 0;
+
+            int worlds = in.readInt();
+            for (int w = 0; w < worlds; w++) {
+                UUID world = new UUID(in.readLong(), in.readLong());
+                long savedTime = in.readLong();
+                Long time = worldTimes.get(world);
+                boolean fresh = time != null && time == savedTime;
+
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    long sectionKey = in.readLong();
+                    EncodedBlock[] blocks = new EncodedBlock[in.readInt()];
+                    for (int b = 0; b < blocks.length; b++) {
+                        int packed = in.readInt();
+                        blocks[b] = new EncodedBlock(packed >>> 12, packed & 15, (packed >> 8) & 15, (packed >> 4) & 15);
+                    }
+                    if (fresh) {
+                        cache.put(world, sectionKey, blocks, version);
+                        loaded++;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            logger.warning("Couldn't read the saved scan cache: " + e.getMessage());
+        }
+        return loaded;
+    }
+
+    private static DataInputStream open(Path file) throws IOException {
+        return new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(file))));
+    }
+
+    private static void writeAtomically(Path file, Contents contents) throws IOException {
+        Files.createDirectories(file.getParent());
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(temp))))) {
+            contents.write(out);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeUuid(DataOutputStream out, UUID uuid) throws IOException {
+        out.writeLong(uuid.getMostSignificantBits());
+        out.writeLong(uuid.getLeastSignificantBits());
+    }
+
+    private interface Contents {
+        void write(DataOutputStream out) throws IOException;
+    }
+}
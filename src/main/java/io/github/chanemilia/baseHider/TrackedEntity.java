@@ -0,0 +1,106 @@
+package io.github.chanemilia.baseHider;
+
+import com.github.retrooper.packetevents.protocol.entity.data.EntityData;
+import com.github.retrooper.packetevents.protocol.player.Equipment;
+import com.github.retrooper.packetevents.protocol.player.EquipmentSlot;
+import com.github.retrooper.packetevents.util.Vector3d;
+import com.github.retrooper.packetevents.wrapper.PacketWrapper;
+import com.github.retrooper.packetevents.wrapper.play.server.WrapperPlayServerEntityEquipment;
+import com.github.retrooper.packetevents.wrapper.play.server.WrapperPlayServerEntityMetadata;
+import com.github.retrooper.packetevents.wrapper.play.server.WrapperPlayServerSpawnEntity;
+
+import java.util.*;
+
+/**
+ * An entity as one player's client sees it, positioned from the movement packets sent to that player.
+ * While it's been hidden since spawning, also keeps the spawn, metadata and equipment it would have had
+ * so it can be spawned back in from packets alone
+ */
+public class TrackedEntity {
+    public final int entityId;
+
+    private double x, y, z;
+
+    private WrapperPlayServerSpawnEntity spawn;
+    private Map<Integer, EntityData<?>> metadata;
+    private Map<EquipmentSlot, Equipment> equipment;
+
+    public TrackedEntity(int entityId, double x, double y, double z) {
+        this.entityId = entityId;
+        this.x = x;
+        this.y = y;
+        this.z = z;
+    }
+
+    public synchronized void moveTo(double x, double y, double z) {
+        this.x = x;
+        this.y = y;
+        this.z = z;
+    }
+
+    public synchronized void moveBy(double dx, double dy, double dz) {
+        this.x += dx;
+        this.y += dy;
+        this.z += dz;
+    }
+
+    public synchronized boolean isInColumn(int cx, int cz) {
+        return ((int) Math.floor(x) >> 4) == cx && ((int) Math.floor(z) >> 4) == cz;
+    }
+
+    public synchronized int blockY() {
+        return (int) Math.floor(y);
+    }
+
+    public synchronized double distanceSquared(double px, double py, double pz) {
+        double dx = px - x;
+        double dy = py - y;
+        double dz = pz - z;
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    /**
+     * Keeps a cancelled spawn so a later reveal doesn't need the server to resend anything
+     */
+    public synchronized void captureSpawn(WrapperPlayServerSpawnEntity spawn) {
+        this.spawn = spawn;
+        this.metadata = new LinkedHashMap<>();
+        this.equipment = new EnumMap<>(EquipmentSlot.class);
+    }
+
+    // Metadata and equipment packets only carry what changed, so merge them by index and slot
+
+    public synchronized void captureMetadata(List<EntityData<?>> entries) {
+        if (metadata == null) return;
+        for (EntityData<?> entry : entries) metadata.put(entry.getIndex(), entry);
+    }
+
+    public synchronized void captureEquipment(List<Equipment> entries) {
+        if (equipment == null) return;
+        for (Equipment entry : entries) equipment.put(entry.getSlot(), entry);
+    }
+
+    /**
+     * Packets that spawn the entity back in where it is now, or null if it was hidden after spawning
+     * and only the server knows its full state. Consumes the captured spawn
+     */
+    public synchronized List<PacketWrapper<?>> takeRespawnPackets() {
+        if (spawn == null) return null;
+
+        List<PacketWrapper<?>> packets = new ArrayList<>(3);
+        packets.add(new WrapperPlayServerSpawnEntity(entityId, spawn.getUUID(), spawn.getEntityType(),
+                new Vector3d(x, y, z), spawn.getPitch(), spawn.getYaw(), spawn.getHeadYaw(),
+                spawn.getData(), spawn.getVelocity()));
+        if (!metadata.isEmpty()) {
+            packets.add(new WrapperPlayServerEntityMetadata(entityId, new ArrayList<>(metadata.values())));
+        }
+        if (!equipment.isEmpty()) {
+            packets.add(new WrapperPlayServerEntityEquipment(entityId, new ArrayList<>(equipment.values())));
+        }
+
+        spawn = null;
+        metadata = null;
+        equipment = null;
+        return packets;
+    }
+}
@@ -0,0 +1,257 @@
+package io.github.chanemilia.baseHider;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+/**
+ * Per-player update queues drained deficit round robin on estimated bytes, so one player teleporting into a base
+ * can't starve everyone else and slow connections aren't sent more than they can take.
+ * Updates within a player's queue go out nearest first, with sections behind where the player is looking
+ * or heading pushed back. The view is sampled every tick so turning re-ranks what's queued without a rebuild
+ */
+public class UpdateScheduler {
+    // Largest MultiBlockChange a section can produce, a player can always save up enough for one of these
+    public static final int MAX_SECTION_BYTES = 16 + 4096 * 5;
+
+    // How far ahead the player's velocity is extrapolated when ranking, in ticks
+    private static final int LOOKAHEAD_TICKS = 10;
+
+    private final Map<UUID, PlayerQueue> queues = new ConcurrentHashMap<>();
+
+    // Rotates which player is served first each tick
+    private int rotation;
+
+    public void add(HiderSystem.PendingUpdate update) {
+        queues.computeIfAbsent(update.playerUUID(), k -> new PlayerQueue()).add(update);
+    }
+
+    /**
+     * Hands updates to the sender until the tick's update or byte budget runs out. Each player with queued updates
+     * earns playerQuantum bytes of credit per tick and can send at most perPlayerCap updates, a player earning nothing
+     * because their connection is backed up sends nothing that tick.
+     * viewOf gives each player's eye position and look direction, or null to rank by distance.
+     * Updates failing isCurrent were superseded while queued and are dropped without costing anything.
+     * Returns how many were dropped. Main thread only
+     */
+    public int drain(int maxUpdates, int perPlayerCap, long byteBudget, ToLongFunction<UUID> playerQuantum,
+                     Function<UUID, View> viewOf, double viewWeight, Predicate<HiderSystem.PendingUpdate> isCurrent,
+                     Consumer<HiderSystem.PendingUpdate> sender) {
+        List<PlayerQueue> active = new ArrayList<>();
+        List<UUID> owners = new ArrayList<>();
+        for (Map.Entry<UUID, PlayerQueue> entry : queues.entrySet()) {
+            PlayerQueue queue = entry.getValue();
+            if (queue.isEmpty()) {
+                queue.deficit = 0;
+                queue.hasSample = false;
+                continue;
+            }
+            active.add(queue);
+            owners.add(entry.getKey());
+        }
+        if (active.isEmpty()) return 0;
+
+        int size = active.size();
+        int start = Math.floorMod(rotation++, size);
+        int[] sent = new int[size];
+
+        for (int i = 0; i < size; i++) {
+            PlayerQueue queue = active.get(i);
+            queue.look(viewOf.apply(owners.get(i)), viewWeight);
+
+            long quantum = playerQuantum.applyAsLong(owners.get(i));
+            if (quantum <= 0) {
+                sent[i] = perPlayerCap;
+                continue;
+            }
+            queue.deficit = Math.min(queue.deficit + quantum, Math.max(quantum * 4, MAX_SECTION_BYTES * 2L));
+        }
+
+        int[] dropped = new int[1];
+        boolean progress = true;
+        while (maxUpdates > 0 && byteBudget > 0 && progress) {
+            progress = false;
+
+            for (int i = 0; i < size && maxUpdates > 0 && byteBudget > 0; i++) {
+                int index = (start + i) % size;
+                if (sent[index] >= perPlayerCap) continue;
+
+                PlayerQueue queue = active.get(index);
+                HiderSystem.PendingUpdate update = queue.pollIfFits(Math.min(queue.deficit, byteBudget), isCurrent, dropped);
+                if (update == null) continue;
+
+                queue.deficit -= update.estimatedBytes();
+                byteBudget -= update.estimatedBytes();
+                sent[index]++;
+                maxUpdates--;
+                progress = true;
+                sender.accept(update);
+            }
+        }
+        return dropped[0];
+    }
+
+    public int depth(UUID player) {
+        PlayerQueue queue = queues.get(player);
+        return queue == null ? 0 : queue.size();
+    }
+
+    public Map<UUID, Integer> depths() {
+        Map<UUID, Integer> result = new HashMap<>();
+        queues.forEach((uuid, queue) -> {
+            int size = queue.size();
+            if (size > 0) result.put(uuid, size);
+        });
+        return result;
+    }
+
+    public int totalDepth() {
+        int total = 0;
+        for (PlayerQueue queue : queues.values()) total += queue.size();
+        return total;
+    }
+
+    public void remove(UUID player) {
+        queues.remove(player);
+    }
+
+    public void clear() {
+        queues.clear();
+    }
+
+    /**
+     * Where a player is looking from, dir is a unit vector
+     */
+    public record View(double x, double y, double z, double dirX, double dirY, double dirZ) {
+    }
+
+    // Eye position pushed ahead by the player's velocity
+    private record Viewpoint(double x, double y, double z, double dirX, double dirY, double dirZ, double weight) {
+    }
+
+    /**
+     * Ranking score, squared distance from the viewpoint stretched by up to 1 + weight for sections straight behind.
+     * Sections within 16 blocks of the viewpoint are never pushed back
+     */
+    static double score(HiderSystem.PendingUpdate update, double x, double y, double z,
+                        double dirX, double dirY, double dirZ, double weight) {
+        double dx = (update.chunkX() << 4) + 8 - x;
+        double dy = (update.sectionY() << 4) + 8 - y;
+        double dz = (update.chunkZ() << 4) + 8 - z;
+        double distSq = dx * dx + dy * dy + dz * dz;
+        if (weight <= 0 || distSq < 256) return distSq;
+
+        double cos = (dx * dirX + dy * dirY + dz * dirZ) / Math.sqrt(distSq);
+        return distSq * (1 + weight * (1 - cos) / 2);
+    }
+
+    /**
+     * Updates split into horizontal sectors around the player, each nearest first. Polling compares only the sector
+     * heads against the current view, so the queue stays valid however the player turns
+     */
+    private static final class PlayerQueue {
+        private static final int SECTORS = 8;
+
+        @SuppressWarnings("unchecked")
+        private final PriorityQueue<HiderSystem.PendingUpdate>[] sectors = new PriorityQueue[SECTORS];
+        private int size;
+
+        // Latest viewpoint, written from drain and read when adding from any thread
+        private volatile Viewpoint view;
+
+        // Byte credit and the last position sample for velocity, only touched from drain on the main thread
+        long deficit;
+        boolean hasSample;
+        private double lastX, lastY, lastZ;
+        private double velX, velY, velZ;
+
+        PlayerQueue() {
+            for (int i = 0; i < SECTORS; i++) sectors[i] = new PriorityQueue<>();
+        }
+
+        void look(View eye, double weight) {
+            if (eye == null) {
+                view = null;
+                hasSample = false;
+                return;
+            }
+
+            if (hasSample) {
+                double dx = eye.x() - lastX;
+                double dy = eye.y() - lastY;
+                double dz = eye.z() - lastZ;
+
+                // Smoothed a little so one jittery tick doesn't swing the order, and reset after teleports
+                if (dx * dx + dy * dy + dz * dz > 64) {
+                    velX = velY = velZ = 0;
+                } else {
+                    velX = (velX + dx) / 2;
+                    velY = (velY + dy) / 2;
+                    velZ = (velZ + dz) / 2;
+                }
+            } else {
+                velX = velY = velZ = 0;
+            }
+            lastX = eye.x();
+            lastY = eye.y();
+            lastZ = eye.z();
+            hasSample = true;
+
+            view = new Viewpoint(eye.x() + velX * LOOKAHEAD_TICKS, eye.y() + velY * LOOKAHEAD_TICKS,
+                    eye.z() + velZ * LOOKAHEAD_TICKS, eye.dirX(), eye.dirY(), eye.dirZ(), weight);
+        }
+
+        private int sectorOf(HiderSystem.PendingUpdate update) {
+            Viewpoint v = view;
+            if (v == null) return 0;
+
+            double angle = Math.atan2((update.chunkZ() << 4) + 8 - v.z(), (update.chunkX() << 4) + 8 - v.x());
+            return Math.floorMod((int) Math.floor(angle / (2 * Math.PI) * SECTORS), SECTORS);
+        }
+
+        synchronized void add(HiderSystem.PendingUpdate update) {
+            sectors[sectorOf(update)].add(update);
+            size++;
+        }
+
+        synchronized HiderSystem.PendingUpdate pollIfFits(long allowance, Predicate<HiderSystem.PendingUpdate> isCurrent,
+                                                         int[] dropped) {
+            Viewpoint v = view;
+            PriorityQueue<HiderSystem.PendingUpdate> best = null;
+            double bestScore = Double.MAX_VALUE;
+
+            for (PriorityQueue<HiderSystem.PendingUpdate> sector : sectors) {
+                HiderSystem.PendingUpdate head;
+                // Only heads are checked, anything stale further back is dropped once it gets to the front
+                while ((head = sector.peek()) != null && !isCurrent.test(head)) {
+                    sector.poll();
+                    size--;
+                    dropped[0]++;
+                }
+                if (head == null) continue;
+
+                double score = v == null ? head.distSq()
+                        : score(head, v.x(), v.y(), v.z(), v.dirX(), v.dirY(), v.dirZ(), v.weight());
+                if (score < bestScore) {
+                    bestScore = score;
+                    best = sector;
+                }
+            }
+
+            if (best == null || best.peek().estimatedBytes() > allowance) return null;
+            size--;
+            return best.poll();
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        synchronized boolean isEmpty() {
+            return size == 0;
+        }
+    }
+}
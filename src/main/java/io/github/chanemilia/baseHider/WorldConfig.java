@@ -26,4 +26,13 @@ public class WorldConfig {
 
         this.showY = section.getInt("show-y", 16);
     }
-}
\ No newline at end of file
+
+    /**
+     * Whether every setting matches, false for null
+     */
+    public boolean sameAs(WorldConfig other) {
+        return other != null && enabled == other.enabled && hideEntities == other.hideEntities &&
+                replacementBlock.equals(other.replacementBlock) && blockHideY == other.blockHideY &&
+                showDistanceSq == other.showDistanceSq && showY == other.showY;
+    }
+}